@@ -7,6 +7,10 @@ public class Ciphertext {
 
     private Polynomial d0, d1, d2;
 
+    // d2 of the last multiplication, kept after relinearization so that the next
+    // multiplication into this ciphertext can reuse its storage
+    private Polynomial spare;
+
     private double scale;
 
     private int level;
@@ -37,6 +41,9 @@ public class Ciphertext {
 
     public void init(Polynomial b, Polynomial a, int level,
             double scale) {
+        this.d0 = null;
+        this.d1 = null;
+        this.d2 = null;
         this.b = b;
         this.a = a;
         this.level = level;
@@ -50,10 +57,12 @@ public class Ciphertext {
         this.d0 = d0;
         this.d1 = d1;
         this.d2 = d2;
+        this.spare = null;
         this.scale = scale;
     }
 
     public void afterRelinearization(Polynomial b, Polynomial a) {
+        this.spare = d2;
         this.d0 = null;
         this.d1 = null;
         this.d2 = null;
@@ -92,6 +101,10 @@ public class Ciphertext {
         return d2;
     }
 
+    Polynomial getSpare() {
+        return spare;
+    }
+
     public boolean isEmpty() {
         return b == null && d0 == null;
     }
@@ -138,23 +151,21 @@ public class Ciphertext {
         if (d0 != null)
             throw new IllegalArgumentException("Ciphertext::serialize supported only for linear ciphertext.");
 
-        long[][] bCrt = b.getCrt();
-        long[][] aCrt = a.getCrt();
+        int bLength = (b.getLevel() + 1) * b.getN();
+        int aLength = (a.getLevel() + 1) * a.getN();
 
-        long[] res = new long[(2 + bCrt.length * bCrt[0].length) + (2 + aCrt.length * aCrt[0].length) + 2];
+        long[] res = new long[(2 + bLength) + (2 + aLength) + 2];
         int idx = 0;
 
-        res[idx++] = bCrt.length;
-        res[idx++] = bCrt[0].length;
-        for (int i = 0; i < bCrt.length; i++)
-            for (int j = 0; j < bCrt[0].length; j++)
-                res[idx++] = bCrt[i][j];
+        res[idx++] = b.getLevel() + 1;
+        res[idx++] = b.getN();
+        b.copyTo(0, res, idx, bLength);
+        idx += bLength;
 
-        res[idx++] = aCrt.length;
-        res[idx++] = aCrt[0].length;
-        for (int i = 0; i < aCrt.length; i++)
-            for (int j = 0; j < aCrt[0].length; j++)
-                res[idx++] = aCrt[i][j];
+        res[idx++] = a.getLevel() + 1;
+        res[idx++] = a.getN();
+        a.copyTo(0, res, idx, aLength);
+        idx += aLength;
 
         res[idx++] = (long) scale;
         res[idx] = level;
@@ -165,15 +176,13 @@ public class Ciphertext {
     public void deserialize(long[] serialization) {
         int idx = 0;
 
-        long[][] bCrt = new long[(int) serialization[idx++]][(int) serialization[idx++]];
-        for (int i = 0; i < bCrt.length; i++)
-            for (int j = 0; j < bCrt[0].length; j++)
-                bCrt[i][j] = serialization[idx++];
+        long[] bCrt = new long[(int) serialization[idx++] * (int) serialization[idx++]];
+        System.arraycopy(serialization, idx, bCrt, 0, bCrt.length);
+        idx += bCrt.length;
 
-        long[][] aCrt = new long[(int) serialization[idx++]][(int) serialization[idx++]];
-        for (int i = 0; i < aCrt.length; i++)
-            for (int j = 0; j < aCrt[0].length; j++)
-                aCrt[i][j] = serialization[idx++];
+        long[] aCrt = new long[(int) serialization[idx++] * (int) serialization[idx++]];
+        System.arraycopy(serialization, idx, aCrt, 0, aCrt.length);
+        idx += aCrt.length;
 
         b = new Polynomial(context, bCrt);
         a = new Polynomial(context, aCrt);
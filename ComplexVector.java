@@ -0,0 +1,84 @@
+package ckks;
+
+// A vector of complex numbers stored as two parallel arrays of real and
+// imaginary parts, so that bulk operations run as plain loops over doubles
+// without allocating a Complex per element.
+public class ComplexVector {
+
+    public final double[] re, im;
+
+    // c'tors
+    public ComplexVector(int length) {
+        this.re = new double[length];
+        this.im = new double[length];
+    }
+
+    public ComplexVector(double[] re, double[] im) {
+        if (re.length != im.length)
+            throw new IllegalArgumentException("Both parts must be of the same size.");
+
+        this.re = re;
+        this.im = im;
+    }
+
+    public ComplexVector(Complex[] src) {
+        this(src.length);
+
+        for (int i = 0; i < src.length; i++) {
+            re[i] = src[i].re;
+            im[i] = src[i].im;
+        }
+    }
+
+    public ComplexVector(ComplexVector src) {
+        this(src.re.clone(), src.im.clone());
+    }
+
+    public int length() {
+        return re.length;
+    }
+
+    // elements
+    public Complex get(int i) {
+        return new Complex(re[i], im[i]);
+    }
+
+    public void set(int i, double re, double im) {
+        this.re[i] = re;
+        this.im[i] = im;
+    }
+
+    public void set(int i, Complex value) {
+        set(i, value.re, value.im);
+    }
+
+    public Complex[] toArray() {
+        Complex[] res = new Complex[length()];
+
+        for (int i = 0; i < res.length; i++)
+            res[i] = new Complex(re[i], im[i]);
+
+        return res;
+    }
+
+    // bulk operations
+    public void scale_inplace(double scalar) {
+        for (int i = 0; i < re.length; i++) {
+            re[i] *= scalar;
+            im[i] *= scalar;
+        }
+    }
+
+    // print
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < re.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append('(').append(re[i]).append(", ").append(im[i]).append(')');
+        }
+
+        return sb.append(']').toString();
+    }
+}
@@ -1,9 +1,12 @@
 package ckks;
 
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 public class Context {
     final static boolean debug = false;
@@ -12,36 +15,82 @@ public class Context {
     int topLevel;
     double defaultScale;
 
-    // Roots of the cyclotomic polynomial
-    Complex cyclotomicRoots[];
-
     // All generated primes, used to check that we didn't took some prime twice
     long[] allPrimes;
     int lastPrimeIdx = 0;
 
+    // drives the prime and root of unity search when the context is created with a
+    // seed, null otherwise. Only used during construction
+    private Random rnd;
+
     // RNS primes
     long[] primes;
 
+    // in [i] the inverse of the i'th prime modulo 2^64, for Montgomery reduction
+    long[] primesMontInvs;
+
+    // in [i] 2^128 modulo the i'th prime, for Montgomery reduction
+    long[] primesMontR2s;
+
+    // in [i][j] the product of the first j primes modulo the i'th prime, for j < i.
+    // Used for mixed radix CRT reconstruction
+    long[][] primesPrefixProdsMods;
+
+    // in [i] the inverse of the product of the first i primes modulo the i'th prime
+    long[] primesPrefixProdsInvs;
+    long[] primesPrefixProdsInvsShoup;
+
     // Level specific data
     LevelData[] levelsData;
 
     // Roots of unity modulo each prime
     long[][] primesRootsOfUnity;
 
-    // VandermondeLU of each prime, used for encoding
-    long[][][] primesVandermondeLUs;
+    // in [i][j] psi^brv(j) modulo the i'th prime, where psi is the primitive 2N'th
+    // root of unity primesRootsOfUnity[i][0] and brv is log2(N)-bit reversal. Used
+    // by the forward NTT
+    long[][] primesNttTwiddles;
+
+    // in [i][j] psi^-brv(j) modulo the i'th prime. Used by the inverse NTT
+    long[][] primesNttInvTwiddles;
+
+    // in [i] the inverse of N modulo the i'th prime
+    long[] primesNInv;
+
+    // Shoup precomputations (see Maths.shoupPrecompute) of the three tables above
+    long[][] primesNttTwiddlesShoup;
+    long[][] primesNttInvTwiddlesShoup;
+    long[] primesNInvShoup;
 
     // in [i][j] the inverse of the j'th prime modulo the i'th prime
     long[][] otherPrimesInv;
+    long[][] otherPrimesInvShoup;
 
     // temp primes. Used in relinearization
     long[] tempPrimes;
 
+    // in [i] the inverse of the i'th temp prime modulo 2^64, for Montgomery
+    // reduction
+    long[] tempPrimesMontInvs;
+
+    // in [i] 2^128 modulo the i'th temp prime, for Montgomery reduction
+    long[] tempPrimesMontR2s;
+
+    // same as primesNttTwiddles, primesNttInvTwiddles and primesNInv (and their
+    // Shoup precomputations) for the temp primes. Used in relinearization
+    long[][] tempPrimesNttTwiddles;
+    long[][] tempPrimesNttInvTwiddles;
+    long[] tempPrimesNInv;
+    long[][] tempPrimesNttTwiddlesShoup;
+    long[][] tempPrimesNttInvTwiddlesShoup;
+    long[] tempPrimesNInvShoup;
+
     // in [i] product of temp primes modulo the i'th regular prime
     long[] tempPrimesProdsMod;
 
     // in [i] inverse of product of temp primes modulo the i'th regular prime
     long[] tempPrimesProdsInvMod;
+    long[] tempPrimesProdsInvModShoup;
 
     // in [i][j] product of temp primes besides the i'th temp prime, modulo the j'th
     // regular prime
@@ -50,6 +99,11 @@ public class Context {
     // in [i] inverse of product of temp primes besides the i'th temp prime, modulo
     // the i'th temp prime
     long[] otherTempPrimesProdsInvsMod;
+    long[] otherTempPrimesProdsInvsModShoup;
+
+    // the pool the heavy kernels split their limbs across, see Parallel. null (the
+    // default) runs everything on the calling thread
+    private ForkJoinPool pool;
 
     /**
      * Initializes an empty context to be loaded with deserialize
@@ -72,6 +126,21 @@ public class Context {
      * @throws Exception
      */
     public Context(int slots, int multiplications, int integerPrecision, int fractionalPrecision) {
+        this(slots, multiplications, integerPrecision, fractionalPrecision, null);
+    }
+
+    /**
+     * Same as Context(slots, multiplications, integerPrecision,
+     * fractionalPrecision), but the primes and roots of unity are derived from
+     * the given seed, so that contexts created anywhere with the same parameters
+     * and seed are identical. Without a seed the context is deterministic too,
+     * with the largest suitable primes of each size.
+     */
+    public Context(int slots, int multiplications, int integerPrecision, int fractionalPrecision, long seed) {
+        this(slots, multiplications, integerPrecision, fractionalPrecision, new Random(seed));
+    }
+
+    private Context(int slots, int multiplications, int integerPrecision, int fractionalPrecision, Random rnd) {
         if (!isPowerOfTwo(slots))
             throw new IllegalArgumentException("Number of slots must be power of 2");
 
@@ -84,16 +153,13 @@ public class Context {
         this.slots = slots;
         this.topLevel = multiplications;
         this.defaultScale = Math.pow(2, fractionalPrecision);
-
-        if (debug)
-            System.out.println("initCyclotomicRoots()\n");
-        initCyclotomicRoots();
+        this.rnd = rnd;
 
         if (debug)
             System.out.println("initPrimes()\n");
         initPrimes(multiplications, integerPrecision, fractionalPrecision);
         initPrimesData();
-        initTempPrimes(fractionalPrecision);
+        initTempPrimes(integerPrecision, fractionalPrecision);
         initTempPrimesData();
 
         if (debug)
@@ -101,8 +167,11 @@ public class Context {
         initPrimesRootsOfUnity();
 
         if (debug)
-            System.out.println("initPrimesVandermondeLUs()\n");
-        initPrimesVandermondeLUs();
+            System.out.println("initPrimesNttTables()\n");
+        initPrimesNttTables();
+        initTempPrimesNttTables();
+
+        this.rnd = null;
     }
 
     public void validateLevelDataExists(int level) {
@@ -116,27 +185,18 @@ public class Context {
         return (x & (x - 1)) == 0;
     }
 
-    private void initCyclotomicRoots() {
-        cyclotomicRoots = new Complex[slots];
-
-        for (int i = 0; i < slots; i++) {
-            double theta = (Math.PI * (2 * i + 1)) / (2 * slots);
-            cyclotomicRoots[i] = new Complex(Math.cos(theta), Math.sin(theta));
-        }
-    }
-
     private void initPrimes(int multiplications, int integerPrecision, int fractionalPrecision) {
-        allPrimes = new long[2 * (multiplications + 1)];
+        allPrimes = new long[multiplications + 1
+                + tempPrimesCount(multiplications + 1, integerPrecision, fractionalPrecision)];
         primes = new long[multiplications + 1];
 
-        Random rnd = new Random();
         // We search for primes that are 1 bit larger than the wanted precision, so that
         // the range of valid values for encryption (determined by the precision
         // parameters) will be contained inside the modulos range. Also, notice that
         // JAVA doesn't have unsigned types, and so we limit our width to 63 bits max.
-        primes[0] = genPrime(integerPrecision + fractionalPrecision + 1, rnd, slots * 2);
+        primes[0] = genPrime(integerPrecision + fractionalPrecision + 1, slots * 2);
         for (int i = 1; i < primes.length; i++)
-            primes[i] = genPrime(fractionalPrecision + 1, rnd, slots * 2);
+            primes[i] = genPrime(fractionalPrecision + 1, slots * 2);
     }
 
     private void initPrimesData() {
@@ -152,19 +212,54 @@ public class Context {
 
         levelsData = new LevelData[primes.length];
 
+        primesMontInvs = new long[primes.length];
+        primesMontR2s = new long[primes.length];
+        for (int primeIdx = 0; primeIdx < primes.length; primeIdx++) {
+            primesMontInvs[primeIdx] = Maths.montInv(primes[primeIdx]);
+            primesMontR2s[primeIdx] = Maths.montR2(primes[primeIdx]);
+        }
+
+        primesPrefixProdsMods = new long[primes.length][];
+        primesPrefixProdsInvs = new long[primes.length];
+        primesPrefixProdsInvsShoup = new long[primes.length];
+        for (int primeIdx = 0; primeIdx < primes.length; primeIdx++) {
+            primesPrefixProdsMods[primeIdx] = new long[primeIdx];
+            long prod = 1;
+            for (int j = 0; j < primeIdx; j++) {
+                primesPrefixProdsMods[primeIdx][j] = prod;
+                prod = Maths.modMult(prod, primes[j], primes[primeIdx]);
+            }
+            primesPrefixProdsInvs[primeIdx] = Maths.modInv(prod, primes[primeIdx]);
+            primesPrefixProdsInvsShoup[primeIdx] = Maths.shoupPrecompute(primesPrefixProdsInvs[primeIdx],
+                    primes[primeIdx]);
+        }
+
         otherPrimesInv = new long[primes.length][primes.length];
+        otherPrimesInvShoup = new long[primes.length][primes.length];
         for (int primeIdx = 0; primeIdx < primes.length; primeIdx++)
             for (int otherPrimeIdx = 0; otherPrimeIdx < primes.length; otherPrimeIdx++)
-                if (primeIdx != otherPrimeIdx)
+                if (primeIdx != otherPrimeIdx) {
                     otherPrimesInv[primeIdx][otherPrimeIdx] = Maths.modInv(primes[otherPrimeIdx], primes[primeIdx]);
+                    otherPrimesInvShoup[primeIdx][otherPrimeIdx] = Maths
+                            .shoupPrecompute(otherPrimesInv[primeIdx][otherPrimeIdx], primes[primeIdx]);
+                }
     }
 
-    private void initTempPrimes(int fractionalPrecision) {
-        tempPrimes = new long[primes.length];
+    // key switching (relinearization and rotations) divides its noise by P, the
+    // product of the temp primes, after multiplying it by up to Q, the product of
+    // the primes. So P must be at least Q for the noise to stay small at the top
+    // level, which takes more temp primes than primes as these are 1 bit narrower
+    // and the first prime also holds the integer precision
+    private static int tempPrimesCount(int primes, int integerPrecision, int fractionalPrecision) {
+        int qBits = integerPrecision + primes * (fractionalPrecision + 1);
+        return Math.max(primes, (qBits + fractionalPrecision - 1) / fractionalPrecision);
+    }
+
+    private void initTempPrimes(int integerPrecision, int fractionalPrecision) {
+        tempPrimes = new long[tempPrimesCount(primes.length, integerPrecision, fractionalPrecision)];
 
-        Random rnd = new Random();
         for (int i = 0; i < tempPrimes.length; i++)
-            tempPrimes[i] = genPrime(fractionalPrecision, rnd, slots * 2);
+            tempPrimes[i] = genPrime(fractionalPrecision, slots * 2);
     }
 
     private void initTempPrimesData() {
@@ -179,6 +274,13 @@ public class Context {
             System.out.println("Temp Modulus= " + modulus + '\n');
         }
 
+        tempPrimesMontInvs = new long[tempPrimes.length];
+        tempPrimesMontR2s = new long[tempPrimes.length];
+        for (int tempPrimeIdx = 0; tempPrimeIdx < tempPrimes.length; tempPrimeIdx++) {
+            tempPrimesMontInvs[tempPrimeIdx] = Maths.montInv(tempPrimes[tempPrimeIdx]);
+            tempPrimesMontR2s[tempPrimeIdx] = Maths.montR2(tempPrimes[tempPrimeIdx]);
+        }
+
         tempPrimesProdsMod = new long[primes.length];
         for (int primeIdx = 0; primeIdx < primes.length; primeIdx++) {
             tempPrimesProdsMod[primeIdx] = 1;
@@ -192,8 +294,12 @@ public class Context {
         }
 
         tempPrimesProdsInvMod = new long[primes.length];
-        for (int primeIdx = 0; primeIdx < primes.length; primeIdx++)
+        tempPrimesProdsInvModShoup = new long[primes.length];
+        for (int primeIdx = 0; primeIdx < primes.length; primeIdx++) {
             tempPrimesProdsInvMod[primeIdx] = Maths.modInv(tempPrimesProdsMod[primeIdx], primes[primeIdx]);
+            tempPrimesProdsInvModShoup[primeIdx] = Maths.shoupPrecompute(tempPrimesProdsInvMod[primeIdx],
+                    primes[primeIdx]);
+        }
 
         if (debug) {
             System.out.println("tempPrimesProdsInvMod= " + Arrays.toString(tempPrimesProdsInvMod) + '\n');
@@ -229,155 +335,192 @@ public class Context {
                     tempPrimes[tempPrimeIdx]);
         }
 
+        otherTempPrimesProdsInvsModShoup = new long[tempPrimes.length];
+        for (int tempPrimeIdx = 0; tempPrimeIdx < tempPrimes.length; tempPrimeIdx++)
+            otherTempPrimesProdsInvsModShoup[tempPrimeIdx] = Maths
+                    .shoupPrecompute(otherTempPrimesProdsInvsMod[tempPrimeIdx], tempPrimes[tempPrimeIdx]);
+
         if (debug) {
             System.out.println("otherTempPrimesProdsInvsMod= " + Arrays.toString(otherTempPrimesProdsInvsMod) + '\n');
         }
 
     }
 
-    private long genPrime(int bits, Random rnd, int N) {
+    // the largest prime of the given number of bits that is 1 modulo 2N and wasn't
+    // taken yet, or with a seed the first one scanning down from a random point
+    // (wrapping around to the top). Scans the candidates k * 2N + 1 with a
+    // deterministic primality test, and takes the primes of common parameters from
+    // PrimeTable
+    private long genPrime(int bits, int N) {
         // for each prime p, (p-1) needs to be divisible by 2N (slots * 4)
         // so that the cyclotomic polynomial can be factorized completely modulo p.
         // see:
         // https://en.wikipedia.org/wiki/Cyclotomic_polynomial#Cyclotomic_polynomials_over_a_finite_field_and_over_the_p-adic_integers
-        BigInteger M = BigInteger.valueOf(2 * N);
-
-        long res = 0;
-        boolean found = false;
-        int tries = 0;
-
-        while (!found && tries < 100) {
-            tries++;
+        long M = 2L * N;
 
-            BigInteger num = BigInteger.probablePrime(bits, rnd);
+        // the candidates k * M + 1 in [2^(bits - 1), 2^bits), from the largest
+        long kMax = ((1L << bits) - 2) / M;
 
-            if (!num.subtract(BigInteger.ONE).mod(M).equals(BigInteger.ZERO))
-                continue;
-
-            res = num.longValue();
+        if (rnd == null) {
+            for (long prime : PrimeTable.primes(N, bits)) {
+                if (!isTaken(prime)) {
+                    allPrimes[lastPrimeIdx++] = prime;
+                    return prime;
+                }
+                // the table has all the primes above its last one
+                kMax = (prime - 1) / M - 1;
+            }
+        }
 
-            found = true;
+        long kMin = ((1L << (bits - 1)) - 1 + M - 1) / M;
+        long count = kMax - kMin + 1;
+        long first = rnd == null || count <= 0 ? 0 : rnd.nextLong(count);
 
-            for (int i = 0; i < lastPrimeIdx; i++)
-                if (allPrimes[i] == res)
-                    found = false;
+        for (long i = 0; i < count; i++) {
+            long res = (kMax - (first + i) % count) * M + 1;
+            if (Maths.isPrime(res) && !isTaken(res)) {
+                allPrimes[lastPrimeIdx++] = res;
+                return res;
+            }
         }
 
-        if (!found)
-            throw new IllegalStateException(
-                    "Unable to find enough primes for given parameters. Try to increase fractional precision.");
-
-        allPrimes[lastPrimeIdx++] = res;
+        throw new IllegalStateException(
+                "Unable to find enough primes for given parameters. Try to increase fractional precision.");
+    }
 
-        return res;
+    private boolean isTaken(long prime) {
+        for (int i = 0; i < lastPrimeIdx; i++)
+            if (allPrimes[i] == prime)
+                return true;
+        return false;
     }
 
-    // see:
-    // https://math.stackexchange.com/questions/158344/how-to-find-the-solutions-for-the-n-th-root-of-unity-in-modular-arithmetic
     private void initPrimesRootsOfUnity() {
         int N = slots * 2;
 
         primesRootsOfUnity = new long[primes.length][N];
 
-        Random rand = new Random();
-        long generator = 0, res;
         for (int primeIdx = 0; primeIdx < primes.length; primeIdx++) {
-            HashSet<Long> generators = new HashSet<Long>();
-            res = 1;
-
-            // if res == 1 then we didn't got a generator
-            while (res == 1) {
-                generator = Maths.mod(rand.nextLong(), primes[primeIdx] - 2) + 1;
-                if (generators.contains(generator))
-                    continue;
-
-                generators.add(generator);
-                res = Maths.modPow(generator, (primes[primeIdx] - 1) / 2, primes[primeIdx]);
+            long prime = primes[primeIdx];
+            long psi = rnd == null ? PrimeTable.root(N, prime) : 0;
+            if (psi == 0)
+                psi = calcRootOfUnity(prime, rnd);
+
+            // the odd powers of psi are the roots of x^N + 1
+            long psiSquared = Maths.modMult(psi, psi, prime);
+            long root = psi;
+            for (int rootIdx = 0; rootIdx < N; rootIdx++) {
+                primesRootsOfUnity[primeIdx][rootIdx] = root;
+                root = Maths.modMult(root, psiSquared, prime);
             }
 
-            for (int rootIdx = 0; rootIdx < N; rootIdx++)
-                primesRootsOfUnity[primeIdx][rootIdx] = Maths.modPow(generator,
-                        ((primes[primeIdx] - 1) / (2 * N)) * (2 * rootIdx + 1), primes[primeIdx]);
-
             if (debug) {
-                System.out.println("(x^" + N + " + 1) roots modulo " + primes[primeIdx] + ": "
+                System.out.println("(x^" + N + " + 1) roots modulo " + prime + ": "
                         + Arrays.toString(primesRootsOfUnity[primeIdx]) + '\n');
             }
+        }
+    }
+
+    // a primitive 2N'th root of unity modulo prime, as g^((prime - 1) / 2N) where g
+    // is a quadratic non-residue, so that it generates the 2-Sylow subgroup. The
+    // smallest such g, or a random one if rnd isn't null. see:
+    // https://math.stackexchange.com/questions/158344/how-to-find-the-solutions-for-the-n-th-root-of-unity-in-modular-arithmetic
+    private long calcRootOfUnity(long prime, Random rnd) {
+        int N = slots * 2;
 
+        long generator = 2;
+        if (rnd != null) {
+            HashSet<Long> generators = new HashSet<Long>();
+            do {
+                generator = Maths.mod(rnd.nextLong(), prime - 2) + 1;
+            } while (!generators.add(generator) || Maths.modPow(generator, (prime - 1) / 2, prime) == 1);
+        } else {
+            while (Maths.modPow(generator, (prime - 1) / 2, prime) == 1)
+                generator++;
         }
+
+        return Maths.modPow(generator, (prime - 1) / (2 * N), prime);
     }
 
-    private void initPrimesVandermondeLUs() {
+    private void initPrimesNttTables() {
         int N = slots * 2;
-        primesVandermondeLUs = new long[primes.length][N][N];
+
+        primesNttTwiddles = new long[primes.length][];
+        primesNttInvTwiddles = new long[primes.length][];
+        primesNInv = new long[primes.length];
+        primesNttTwiddlesShoup = new long[primes.length][];
+        primesNttInvTwiddlesShoup = new long[primes.length][];
+        primesNInvShoup = new long[primes.length];
 
         for (int primeIdx = 0; primeIdx < primes.length; primeIdx++) {
-            // init vandermondes
-            for (int rootIdx = 0; rootIdx < N; rootIdx++) {
-                long val = 1;
-                for (int exp = 0; exp < N; exp++) {
-                    primesVandermondeLUs[primeIdx][rootIdx][exp] = val;
-                    val = Maths.modMult(val, primesRootsOfUnity[primeIdx][rootIdx], primes[primeIdx]);
-                }
-            }
+            long prime = primes[primeIdx];
+            long psi = primesRootsOfUnity[primeIdx][0];
+
+            primesNttTwiddles[primeIdx] = calcNttTwiddles(psi, prime);
+            primesNttInvTwiddles[primeIdx] = calcNttTwiddles(Maths.modInv(psi, prime), prime);
+            primesNInv[primeIdx] = Maths.modInv(N, prime);
+
+            primesNttTwiddlesShoup[primeIdx] = calcShoup(primesNttTwiddles[primeIdx], prime);
+            primesNttInvTwiddlesShoup[primeIdx] = calcShoup(primesNttInvTwiddles[primeIdx], prime);
+            primesNInvShoup[primeIdx] = Maths.shoupPrecompute(primesNInv[primeIdx], prime);
 
             if (debug) {
-                System.out.println("vandermonde matrix for prime " + primes[primeIdx]);
-                System.out.println(Arrays.deepToString(primesVandermondeLUs[primeIdx]));
-                System.out.println();
+                System.out.println("NTT twiddles modulo " + prime + ": "
+                        + Arrays.toString(primesNttTwiddles[primeIdx]) + '\n');
             }
+        }
+    }
 
-            // LU decomposition
-            // based on code from https://math.nist.gov/javanumerics/jama/
-            long[] LUrowi;
-            long[] LUcolj = new long[N];
+    // the temp primes' roots aren't serialized, so unlike initPrimesRootsOfUnity the
+    // generator is always the smallest one, even with a seed
+    private void initTempPrimesNttTables() {
+        int N = slots * 2;
 
-            // Outer loop.
-            for (int j = 0; j < N; j++) {
+        tempPrimesNttTwiddles = new long[tempPrimes.length][];
+        tempPrimesNttInvTwiddles = new long[tempPrimes.length][];
+        tempPrimesNInv = new long[tempPrimes.length];
+        tempPrimesNttTwiddlesShoup = new long[tempPrimes.length][];
+        tempPrimesNttInvTwiddlesShoup = new long[tempPrimes.length][];
+        tempPrimesNInvShoup = new long[tempPrimes.length];
 
-                // Make a copy of the j-th column to localize references.
-                for (int i = 0; i < N; i++)
-                    LUcolj[i] = primesVandermondeLUs[primeIdx][i][j];
+        for (int tempPrimeIdx = 0; tempPrimeIdx < tempPrimes.length; tempPrimeIdx++) {
+            long tempPrime = tempPrimes[tempPrimeIdx];
 
-                // Apply previous transformations.
-                for (int i = 0; i < N; i++) {
-                    LUrowi = primesVandermondeLUs[primeIdx][i];
+            long psi = PrimeTable.root(N, tempPrime);
+            if (psi == 0)
+                psi = calcRootOfUnity(tempPrime, null);
 
-                    int kmax = Math.min(i, j);
-                    long a[] = new long[kmax];
-                    long b[] = new long[kmax];
+            tempPrimesNttTwiddles[tempPrimeIdx] = calcNttTwiddles(psi, tempPrime);
+            tempPrimesNttInvTwiddles[tempPrimeIdx] = calcNttTwiddles(Maths.modInv(psi, tempPrime), tempPrime);
+            tempPrimesNInv[tempPrimeIdx] = Maths.modInv(N, tempPrime);
 
-                    for (int k = 0; k < kmax; k++) {
-                        a[k] = LUrowi[k];
-                        b[k] = LUcolj[k];
-                    }
+            tempPrimesNttTwiddlesShoup[tempPrimeIdx] = calcShoup(tempPrimesNttTwiddles[tempPrimeIdx], tempPrime);
+            tempPrimesNttInvTwiddlesShoup[tempPrimeIdx] = calcShoup(tempPrimesNttInvTwiddles[tempPrimeIdx], tempPrime);
+            tempPrimesNInvShoup[tempPrimeIdx] = Maths.shoupPrecompute(tempPrimesNInv[tempPrimeIdx], tempPrime);
+        }
+    }
 
-                    long s = 0;
-                    for (int k = 0; k < kmax; k++) {
-                        s += Maths.modMult(LUrowi[k], LUcolj[k], primes[primeIdx]);
-                        s = Maths.mod(s, primes[primeIdx]);
-                    }
+    // in [i] psi^brv(i) modulo m
+    private long[] calcNttTwiddles(long psi, long m) {
+        int N = slots * 2;
+        int logN = Integer.numberOfTrailingZeros(N);
 
-                    LUcolj[i] -= s;
-                    LUcolj[i] = Maths.mod(LUcolj[i], primes[primeIdx]);
-                    LUrowi[j] = LUcolj[i];
-                }
+        long[] twiddles = new long[N];
 
-                // Compute multipliers.
-                if (j < N & primesVandermondeLUs[primeIdx][j][j] != 0) {
-                    for (int i = j + 1; i < N; i++)
-                        primesVandermondeLUs[primeIdx][i][j] = Maths.modDiv(primesVandermondeLUs[primeIdx][i][j],
-                                primesVandermondeLUs[primeIdx][j][j], primes[primeIdx]);
+        long power = 1;
+        for (int i = 0; i < N; i++) {
+            twiddles[Maths.bitReverse(i, logN)] = power;
+            power = Maths.modMult(power, psi, m);
+        }
 
-                }
-            }
+        return twiddles;
+    }
 
-            if (debug) {
-                System.out.println("LU decomposition of vandermonde matrix for prime " + primes[primeIdx]);
-                System.out.println(Arrays.deepToString(primesVandermondeLUs[primeIdx]));
-                System.out.println();
-            }
-        }
+    private static long[] calcShoup(long[] values, long m) {
+        long[] res = new long[values.length];
+        for (int i = 0; i < values.length; i++)
+            res[i] = Maths.shoupPrecompute(values[i], m);
+        return res;
     }
 
     public long[] serialize() {
@@ -414,8 +557,6 @@ public class Context {
         primes = new long[(int) serialization[idx++]];
         tempPrimes = new long[(int) serialization[idx++]];
 
-        initCyclotomicRoots();
-
         for (int i = 0; i < primes.length; i++)
             primes[i] = serialization[idx++];
 
@@ -425,6 +566,7 @@ public class Context {
             tempPrimes[i] = serialization[idx++];
 
         initTempPrimesData();
+        initTempPrimesNttTables();
 
         primesRootsOfUnity = new long[primes.length][slots * 2];
 
@@ -432,10 +574,50 @@ public class Context {
             for (int j = 0; j < slots * 2; j++)
                 primesRootsOfUnity[i][j] = serialization[idx++];
 
-        initPrimesVandermondeLUs();
+        initPrimesNttTables();
+    }
+
+    /**
+     * Writes the fully initialized context, including every precomputed table, to
+     * a binary snapshot file that loadSnapshot maps back without recomputing
+     * anything. Unlike serialize, the snapshot's size is linear in the number of
+     * slots times the number of primes, and so is loading it.
+     * 
+     * @param path The file to write, replaced if it exists.
+     */
+    public void saveSnapshot(Path path) throws IOException {
+        ContextSnapshot.write(this, path);
+    }
+
+    /**
+     * Loads a context written by saveSnapshot, through a memory-mapped file.
+     * 
+     * @param path The snapshot file.
+     * @throws IOException If the file can't be read, isn't a snapshot, or was
+     *                     written by an incompatible version.
+     */
+    public static Context loadSnapshot(Path path) throws IOException {
+        return ContextSnapshot.read(path);
     }
 
     public int getNumSlots() {
         return slots;
     }
+
+    /**
+     * Runs the NTTs, basis conversions and element-wise operations of large
+     * polynomials in parallel across their limbs on the given pool, e.g.
+     * ForkJoinPool.commonPool() or one dedicated to this context. Small
+     * polynomials are still processed on the calling thread.
+     * 
+     * @param pool The pool to use, or null to run everything sequentially (the
+     *             default).
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
 }
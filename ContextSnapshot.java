@@ -0,0 +1,208 @@
+package ckks;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Binary snapshot of a fully initialized Context, see Context.saveSnapshot and
+// Context.loadSnapshot. Unlike Context.serialize, it holds every precomputed
+// table (CRT constants, NTT twiddles and their Shoup precomputations, and the
+// data of every level), so loading one is a single pass over a memory-mapped
+// file without any arithmetic.
+//
+// Format, in little-endian longs: MAGIC, VERSION, the number of longs that
+// follow, then the fields in the order of visit. Every array is its length
+// followed by its elements, and every 2D array the number of rows followed by
+// the rows. Any change to visit must bump VERSION.
+final class ContextSnapshot {
+    // "CKKSCTX" and a zero byte, as a little-endian long
+    private static final long MAGIC = 0x0058_5443_534B_4B43L;
+
+    static final long VERSION = 2;
+
+    private static final int HEADER_LONGS = 3;
+
+    private ContextSnapshot() {
+    }
+
+    static void write(Context context, Path path) throws IOException {
+        // the snapshot has every level, not only those used so far
+        for (int level = 0; level < context.primes.length; level++)
+            context.validateLevelDataExists(level);
+
+        Counter counter = new Counter();
+        visit(context, counter);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            LongBuffer buffer = channel
+                    .map(FileChannel.MapMode.READ_WRITE, 0, (HEADER_LONGS + counter.size) * (long) Long.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+
+            buffer.put(MAGIC);
+            buffer.put(VERSION);
+            buffer.put(counter.size);
+            visit(context, new Writer(buffer));
+        }
+    }
+
+    static Context read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_LONGS * Long.BYTES || size % Long.BYTES != 0)
+                throw new IOException("Not a context snapshot: " + path);
+
+            LongBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN)
+                    .asLongBuffer();
+
+            if (buffer.get() != MAGIC)
+                throw new IOException("Not a context snapshot: " + path);
+
+            long version = buffer.get();
+            if (version != VERSION)
+                throw new IOException("Unsupported context snapshot version " + version + ", expected " + VERSION);
+
+            if (buffer.get() != buffer.remaining())
+                throw new IOException("Truncated context snapshot: " + path);
+
+            Context context = new Context();
+            try {
+                visit(context, new Reader(buffer));
+            } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                throw new IOException("Corrupt context snapshot: " + path, e);
+            }
+            return context;
+        }
+    }
+
+    // writes the fields of context to codec, or reads them from it into an empty
+    // context, so that both directions share the layout
+    private static void visit(Context context, Codec codec) {
+        context.slots = (int) codec.scalar(context.slots);
+        context.topLevel = (int) codec.scalar(context.topLevel);
+        context.defaultScale = Double
+                .longBitsToDouble(codec.scalar(Double.doubleToRawLongBits(context.defaultScale)));
+
+        context.primes = codec.longs(context.primes);
+        context.primesMontInvs = codec.longs(context.primesMontInvs);
+        context.primesMontR2s = codec.longs(context.primesMontR2s);
+        context.primesPrefixProdsMods = codec.longs(context.primesPrefixProdsMods);
+        context.primesPrefixProdsInvs = codec.longs(context.primesPrefixProdsInvs);
+        context.primesPrefixProdsInvsShoup = codec.longs(context.primesPrefixProdsInvsShoup);
+        context.primesRootsOfUnity = codec.longs(context.primesRootsOfUnity);
+        context.primesNttTwiddles = codec.longs(context.primesNttTwiddles);
+        context.primesNttInvTwiddles = codec.longs(context.primesNttInvTwiddles);
+        context.primesNInv = codec.longs(context.primesNInv);
+        context.primesNttTwiddlesShoup = codec.longs(context.primesNttTwiddlesShoup);
+        context.primesNttInvTwiddlesShoup = codec.longs(context.primesNttInvTwiddlesShoup);
+        context.primesNInvShoup = codec.longs(context.primesNInvShoup);
+        context.otherPrimesInv = codec.longs(context.otherPrimesInv);
+        context.otherPrimesInvShoup = codec.longs(context.otherPrimesInvShoup);
+
+        context.tempPrimes = codec.longs(context.tempPrimes);
+        context.tempPrimesMontInvs = codec.longs(context.tempPrimesMontInvs);
+        context.tempPrimesMontR2s = codec.longs(context.tempPrimesMontR2s);
+        context.tempPrimesNttTwiddles = codec.longs(context.tempPrimesNttTwiddles);
+        context.tempPrimesNttInvTwiddles = codec.longs(context.tempPrimesNttInvTwiddles);
+        context.tempPrimesNInv = codec.longs(context.tempPrimesNInv);
+        context.tempPrimesNttTwiddlesShoup = codec.longs(context.tempPrimesNttTwiddlesShoup);
+        context.tempPrimesNttInvTwiddlesShoup = codec.longs(context.tempPrimesNttInvTwiddlesShoup);
+        context.tempPrimesNInvShoup = codec.longs(context.tempPrimesNInvShoup);
+        context.tempPrimesProdsMod = codec.longs(context.tempPrimesProdsMod);
+        context.tempPrimesProdsInvMod = codec.longs(context.tempPrimesProdsInvMod);
+        context.tempPrimesProdsInvModShoup = codec.longs(context.tempPrimesProdsInvModShoup);
+        context.otherTempPrimesProdsMods = codec.longs(context.otherTempPrimesProdsMods);
+        context.otherTempPrimesProdsInvsMod = codec.longs(context.otherTempPrimesProdsInvsMod);
+        context.otherTempPrimesProdsInvsModShoup = codec.longs(context.otherTempPrimesProdsInvsModShoup);
+
+        if (context.levelsData == null)
+            context.levelsData = new LevelData[context.primes.length];
+        for (int level = 0; level < context.levelsData.length; level++) {
+            if (context.levelsData[level] == null)
+                context.levelsData[level] = new LevelData();
+
+            LevelData levelData = context.levelsData[level];
+            levelData.otherPrimesProdsMods = codec.longs(levelData.otherPrimesProdsMods);
+            levelData.otherPrimesProdsInvsMod = codec.longs(levelData.otherPrimesProdsInvsMod);
+            levelData.otherPrimesProdsInvsModShoup = codec.longs(levelData.otherPrimesProdsInvsModShoup);
+        }
+    }
+
+    private interface Codec {
+        // the value, written or read
+        long scalar(long value);
+
+        // the array, written or read. values is null when reading
+        long[] longs(long[] values);
+
+        default long[][] longs(long[][] values) {
+            int rows = (int) scalar(values == null ? 0 : values.length);
+            long[][] res = values != null ? values : new long[rows][];
+            for (int i = 0; i < rows; i++)
+                res[i] = longs(res[i]);
+            return res;
+        }
+    }
+
+    // the number of longs visit writes
+    private static final class Counter implements Codec {
+        long size;
+
+        @Override
+        public long scalar(long value) {
+            size++;
+            return value;
+        }
+
+        @Override
+        public long[] longs(long[] values) {
+            size += 1 + values.length;
+            return values;
+        }
+    }
+
+    private static final class Writer implements Codec {
+        private final LongBuffer buffer;
+
+        Writer(LongBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long scalar(long value) {
+            buffer.put(value);
+            return value;
+        }
+
+        @Override
+        public long[] longs(long[] values) {
+            buffer.put(values.length);
+            buffer.put(values);
+            return values;
+        }
+    }
+
+    private static final class Reader implements Codec {
+        private final LongBuffer buffer;
+
+        Reader(LongBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long scalar(long value) {
+            return buffer.get();
+        }
+
+        @Override
+        public long[] longs(long[] values) {
+            long[] res = new long[(int) buffer.get()];
+            buffer.get(res);
+            return res;
+        }
+    }
+}
@@ -19,13 +19,16 @@ public class Decryptor {
             Polynomial b = src.getB();
             Polynomial a = src.getA();
 
-            m = b.add(a.mult(s));
+            m = new Polynomial(b);
+            m.multiplyAdd(a, s);
         } else {
             Polynomial d0 = src.getD0();
             Polynomial d1 = src.getD1();
             Polynomial d2 = src.getD2();
 
-            m = d0.add(d1.mult(s)).add(d2.mult(s.square()));
+            m = new Polynomial(d0);
+            m.multiplyAdd(d1, s);
+            m.multiplyAdd(d2, s.square());
         }
 
         res.init(m, src.getScale(), src.getLevel());
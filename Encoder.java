@@ -8,63 +8,82 @@ public class Encoder {
 
     private Context context;
 
-    // this is also the basis for the ring of vector of polynomial evaluations
-    // (sigma(R))
-    private Complex[][] vandermondeTransposed;
+    // the canonical embedding evaluates a polynomial at the primitive 2N'th roots of
+    // unity ksi^(5^j) and ksi^(-5^j) for j < slots, where ksi = e^(2 pi i / 2N). The
+    // j'th slot holds the evaluation at ksi^(5^j), and the other half are their
+    // conjugates. Ordering the slots by this rotation group is what makes the
+    // embedding computable with the special FFT (see specialFft), and the
+    // automorphisms X -> X^(5^k) rotate the slots.
 
-    private Complex[][] vandermondeLU;
-    private int[] piv;
+    // in [j] 5^j mod 2N
+    private int[] rotationGroup;
+
+    // in [k] ksi^k, for k in [0, 2N]
+    private ComplexVector ksiPows;
 
     public Encoder(Context context) {
         this.context = context;
 
-        calcVandermondeTransposed(context.slots);
+        int M = context.slots * 4;
 
-        if (debug) {
-            System.out.println("Vandermonde transposed:");
-            System.out.println(Arrays.deepToString(vandermondeTransposed));
-            System.out.println();
+        rotationGroup = new int[context.slots];
+        int power = 1;
+        for (int j = 0; j < context.slots; j++) {
+            rotationGroup[j] = power;
+            power = (int) ((power * 5L) % M);
         }
 
-        calcVandermondeLU();
+        ksiPows = new ComplexVector(M + 1);
+        for (int k = 0; k < M; k++) {
+            double theta = 2 * Math.PI * k / M;
+            ksiPows.set(k, Math.cos(theta), Math.sin(theta));
+        }
+        ksiPows.set(M, 1, 0);
 
         if (debug) {
-            System.out.println("VandermondeLU:");
-            System.out.println(Arrays.deepToString(vandermondeLU));
+            System.out.println("Rotation group:");
+            System.out.println(Arrays.toString(rotationGroup));
             System.out.println();
         }
     }
 
     public void encode(Complex[] src, Plaintext res) {
-        if (src.length > context.slots)
+        encode(new ComplexVector(src), res);
+    }
+
+    public void encode(ComplexVector src, Plaintext res) {
+        encode(src, context.topLevel, context.defaultScale, res);
+    }
+
+    public void encode(Complex[] src, int level, double scale, Plaintext res) {
+        encode(new ComplexVector(src), level, scale, res);
+    }
+
+    // encodes src into a plaintext at the given level and scale, with the limbs of
+    // the primes up to level only. Such a plaintext can be multiplied with or added
+    // to a ciphertext at that level as is, e.g. with the ciphertext's scale after
+    // rescaling
+    public void encode(ComplexVector src, int level, double scale, Plaintext res) {
+        if (src.length() > context.slots)
             throw new IllegalArgumentException("Vec size should be at most " + context.slots);
 
-        Complex[] vec = expandVector(src);
+        validateLevelAndScale(level, scale);
+
+        ComplexVector vec = expandVector(src);
         if (debug) {
             System.out.println("Expended vector:");
-            System.out.println(Arrays.toString(vec));
+            System.out.println(vec);
             System.out.println();
         }
 
-        scaleVector(vec);
+        scaleVector(vec, scale);
         if (debug) {
             System.out.println("Scaled vector:");
-            System.out.println(Arrays.toString(vec));
+            System.out.println(vec);
             System.out.println();
         }
 
-        discretizeVector(vec);
-        if (debug) {
-            System.out.println("Discretized vector:");
-            System.out.println(Arrays.toString(vec));
-            System.out.println();
-            System.out.println("Sanity check:");
-            Complex[] sanityCheck = Complex.multVectorByScalar(vec, 1.0 / context.defaultScale);
-            System.out.println(Arrays.toString(sanityCheck));
-            System.out.println();
-        }
-
-        long[] coeffs = canonicalEmbeddingInverse(vec);
+        long[] coeffs = discretizeVector(vec);
         if (debug) {
             System.out.println("Polynomial coefficients:");
             System.out.println(Arrays.toString(coeffs));
@@ -72,26 +91,76 @@ public class Encoder {
             System.out.println("Sanity check:");
             double[] sanityCheckCoeffs = new double[coeffs.length];
             for (int i = 0; i < sanityCheckCoeffs.length; i++)
-                sanityCheckCoeffs[i] = (double) coeffs[i] / context.defaultScale;
+                sanityCheckCoeffs[i] = (double) coeffs[i] / scale;
             System.out.println("scaled coeffs:");
             System.out.println(Arrays.toString(sanityCheckCoeffs));
-            Complex[] sanityCheck = new Complex[context.slots];
-            for (int i = 0; i < context.slots; i++) {
-                double theta = (Math.PI * (2 * i + 1)) / (2 * context.slots);
-                Complex x = new Complex(Math.cos(theta), Math.sin(theta));
-                Complex x_copy = new Complex(x);
-                sanityCheck[i] = new Complex(sanityCheckCoeffs[0]);
-                for (int j = 1; j < sanityCheckCoeffs.length; j++) {
-                    sanityCheck[i].add_inplace(x_copy.mult(new Complex(sanityCheckCoeffs[j])));
-                    x_copy.mult_inplace(x);
-                }
-            }
-            System.out.println(Arrays.toString(sanityCheck));
+            ComplexVector sanityCheck = new ComplexVector(context.slots);
+            canonicalEmbedding(sanityCheckCoeffs, sanityCheck);
+            System.out.println(sanityCheck);
+            System.out.println();
+        }
+
+        initPlaintext(coeffs, level, scale, res);
+    }
+
+    public void encode(double[] src, Plaintext res) {
+        encode(src, context.topLevel, context.defaultScale, res);
+    }
+
+    // encodes real values, i.e. the complex values with zero imaginary parts,
+    // without the imaginary halves of the transforms. See realCoordinates and
+    // encode(ComplexVector, int, double, Plaintext) for the level and scale
+    public void encode(double[] src, int level, double scale, Plaintext res) {
+        if (src.length > context.slots)
+            throw new IllegalArgumentException("Vec size should be at most " + context.slots);
+
+        validateLevelAndScale(level, scale);
+
+        if (context.slots == 1) {
+            encode(new ComplexVector(new double[] { src.length > 0 ? src[0] : 0 }, new double[1]), level, scale,
+                    res);
+            return;
+        }
+
+        int slots = context.slots;
+
+        double[] coordinates = new double[slots * 2];
+        realCoordinates(src, scale, coordinates);
+        if (debug) {
+            System.out.println("Coordinates of real vector in sigma(R)'s basis:");
+            System.out.println(Arrays.toString(coordinates));
+            System.out.println();
+        }
+
+        // the coefficients of a polynomial with real evaluations satisfy
+        // c_(N - i) = -c_i, so only the lower half is rounded and the upper half is
+        // mirrored, which keeps the evaluations real. c_slots is 0
+        long[] coeffs = new long[slots * 2];
+        for (int i = 0; i < slots; i++)
+            coeffs[i] = roundRandomly(coordinates[i]);
+        for (int i = 1; i < slots; i++)
+            coeffs[slots * 2 - i] = -coeffs[i];
+
+        if (debug) {
+            System.out.println("Polynomial coefficients:");
+            System.out.println(Arrays.toString(coeffs));
             System.out.println();
         }
 
-        long[][] rnsCoeffs = Maths.rns(context, coeffs);
-        Maths.ntt_inplace(context, rnsCoeffs, context.primes.length - 1);
+        initPlaintext(coeffs, level, scale, res);
+    }
+
+    private void validateLevelAndScale(int level, double scale) {
+        if (level < 0 || level > context.topLevel)
+            throw new IllegalArgumentException("Level should be between 0 and " + context.topLevel);
+
+        if (!(scale > 0))
+            throw new IllegalArgumentException("Scale should be positive");
+    }
+
+    private void initPlaintext(long[] coeffs, int level, double scale, Plaintext res) {
+        long[] rnsCoeffs = Maths.rns(context, coeffs, level);
+        Maths.ntt_inplace(context, rnsCoeffs, level);
 
         Polynomial poly = new Polynomial(context, rnsCoeffs);
 
@@ -101,34 +170,67 @@ public class Encoder {
             System.out.println();
         }
 
-        res.init(poly, context.topLevel);
+        res.init(poly, scale, level);
     }
 
     public Complex[] decode(Plaintext p) {
+        ComplexVector res = new ComplexVector(context.slots);
+        decode(p, res);
+        return res.toArray();
+    }
+
+    // decodes p into res, which holds the number of slots
+    public void decode(Plaintext p, ComplexVector res) {
+        if (res.length() != context.slots)
+            throw new IllegalArgumentException("Vec size should be " + context.slots);
+
+        // evaluate on roots of the cyclotomic polynomial
+        canonicalEmbedding(decodeCoefficients(p), res);
+    }
+
+    public double[] decodeReal(Plaintext p) {
+        double[] res = new double[context.slots];
+        decodeReal(p, res);
+        return res;
+    }
+
+    // decodes the real parts of the values of p into res, which holds the number
+    // of slots. See realEmbedding
+    public void decodeReal(Plaintext p, double[] res) {
+        if (res.length != context.slots)
+            throw new IllegalArgumentException("Vec size should be " + context.slots);
+
+        double[] coeffs = decodeCoefficients(p);
+
+        if (context.slots == 1) {
+            res[0] = coeffs[0];
+            return;
+        }
+
+        realEmbedding(coeffs, res);
+    }
+
+    // the coefficients of p divided by its scale
+    private double[] decodeCoefficients(Plaintext p) {
         if (debug) {
             System.out.println("Plaintext level= " + p.getLevel());
             System.out.println("Plaintext scale= " + p.getScale());
             System.out.println();
         }
 
-        long[][] crt = p.getM().getCrt();
-
         if (debug) {
             System.out.println("Plaintext polynomial double CRT reps.");
-            System.out.println(Arrays.deepToString(crt));
+            p.getM().debugPrint();
             System.out.println();
         }
 
-        long[][] rnsCoeffs = new long[context.primes.length][context.slots * 2];
-        for (int i = 0; i < context.primes.length; i++)
-            for (int j = 0; j < context.slots * 2; j++)
-                rnsCoeffs[i][j] = crt[i][j];
+        long[] rnsCoeffs = p.getM().toArray();
 
         Maths.nttInverse_inplace(context, rnsCoeffs, p.getLevel());
 
         if (debug) {
             System.out.println("Plaintext polynomial after NTT inverse");
-            System.out.println(Arrays.deepToString(rnsCoeffs));
+            System.out.println(Arrays.toString(rnsCoeffs));
             System.out.println();
         }
 
@@ -149,240 +251,327 @@ public class Encoder {
             System.out.println();
         }
 
-        // TODO: use FFT
-        // evaluate on roots of the cyclotomic polynomial
-        Complex[] res = new Complex[context.slots];
-
-        for (int i = 0; i < context.slots; i++) {
-            Complex x = context.cyclotomicRoots[i];
-
-            Complex x_copy = new Complex(x);
-
-            res[i] = new Complex(coeffs[0]);
-
-            for (int j = 1; j < coeffs.length; j++) {
-                res[i].add_inplace(x_copy.mult(new Complex(coeffs[j])));
-                x_copy.mult_inplace(x);
-            }
-        }
-
-        return res;
+        return coeffs;
     }
 
-    private void calcVandermondeTransposed(int slots) {
-        vandermondeTransposed = new Complex[slots * 2][];
+    // pads vec with zeros to the number of slots. The conjugate half of the
+    // embedding is implied, see rotationGroup
+    private ComplexVector expandVector(ComplexVector vec) {
+        ComplexVector expendedVec = new ComplexVector(context.slots);
 
-        for (int exp = 0; exp < slots * 2; exp++) {
-            Complex[] row = new Complex[slots * 2];
-
-            for (int i = 0; i < slots * 2; i++) {
-                double theta = (Math.PI * (2 * i + 1) * exp) / (2 * slots);
-                row[i] = new Complex(Math.cos(theta), Math.sin(theta));
-            }
+        System.arraycopy(vec.re, 0, expendedVec.re, 0, vec.length());
+        System.arraycopy(vec.im, 0, expendedVec.im, 0, vec.length());
 
-            vandermondeTransposed[exp] = row;
-        }
+        return expendedVec;
     }
 
-    // based on code from https://math.nist.gov/javanumerics/jama/
-    private void calcVandermondeLU() {
-        int N = context.slots * 2;
-
-        vandermondeLU = new Complex[N][N];
-
-        for (int i = 0; i < N; i++)
-            for (int j = 0; j < N; j++)
-                vandermondeLU[j][i] = new Complex(vandermondeTransposed[i][j]);
-
-        piv = new int[N];
+    private void scaleVector(ComplexVector vec, double scale) {
+        vec.scale_inplace(scale);
+    }
 
-        for (int i = 0; i < N; i++) {
-            piv[i] = i;
+    // the coefficients of the integer polynomial whose embedding approximates vec.
+    // vec is inverse embedded once and its coordinates are rounded randomly in
+    // coefficient space, which is the same as projecting vec on the lattice
+    // sigma(R) with the rounding of roundCoordinatesRandomly. Destroys vec
+    private long[] discretizeVector(ComplexVector vec) {
+        double[] coordinates = calcCoordinates(vec);
+        if (debug) {
+            System.out.println("Coordinates of vector in sigma(R)'s basis:");
+            System.out.println(Arrays.toString(coordinates));
+            System.out.println();
         }
 
-        int pivsign = 1;
-
-        Complex[] LUrowi;
-        Complex[] LUcolj = new Complex[N];
+        long[] roundedCoordinates = roundCoordinatesRandomly(coordinates);
+        if (debug) {
+            System.out.println("Coordinates rounded randomly:");
+            System.out.println(Arrays.toString(roundedCoordinates));
+            System.out.println();
+        }
 
-        // Outer loop.
-        for (int j = 0; j < N; j++) {
+        return roundedCoordinates;
+    }
 
-            // Make a copy of the j-th column to localize references.
-            for (int i = 0; i < N; i++)
-                LUcolj[i] = new Complex(vandermondeLU[i][j]);
+    // the coordinates of vec in sigma(R)'s basis sigma(1), sigma(X), ...,
+    // sigma(X^(N-1)), i.e. the coefficients of the real polynomial whose canonical
+    // embedding is vec. The basis is orthogonal, so these are the inverse
+    // embedding, computed in place with the inverse special FFT. Destroys vec
+    private double[] calcCoordinates(ComplexVector vec) {
+        int slots = context.slots;
+
+        specialFftInverse(vec);
+
+        // the real and imaginary parts of vec are the coefficients of the lower and
+        // upper halves, see specialFft
+        double[] coordinates = new double[slots * 2];
+        for (int i = 0; i < slots; i++) {
+            coordinates[i] = vec.re[i];
+            coordinates[i + slots] = vec.im[i];
+        }
 
-            // Apply previous transformations.
-            for (int i = 0; i < N; i++) {
-                LUrowi = vandermondeLU[i];
+        return coordinates;
+    }
 
-                int kmax = Math.min(i, j);
-                Complex a[] = new Complex[kmax];
-                Complex b[] = new Complex[kmax];
+    // res = the evaluations of the real polynomial with the given N coefficients at
+    // the slots' roots of unity, see rotationGroup
+    private void canonicalEmbedding(double[] coeffs, ComplexVector res) {
+        int slots = context.slots;
 
-                for (int k = 0; k < kmax; k++) {
-                    a[k] = LUrowi[k];
-                    b[k] = LUcolj[k];
-                }
+        System.arraycopy(coeffs, 0, res.re, 0, slots);
+        System.arraycopy(coeffs, slots, res.im, 0, slots);
 
-                Complex s = new Complex(0, 0);
-                for (int k = 0; k < kmax; k++) {
-                    s.add_inplace(LUrowi[k].mult(LUcolj[k]));
-                }
-                LUcolj[i].sub_inplace(s);
-                LUrowi[j] = new Complex(LUcolj[i]);
-            }
+        specialFft(res);
+    }
 
-            // Find pivot and exchange if necessary.
-            int p = j;
-            for (int i = j + 1; i < N; i++) {
-                if (LUcolj[i].norm() > LUcolj[p].norm()) {
-                    p = i;
+    // CKKS's special FFT, see https://eprint.iacr.org/2018/1043.pdf (Algorithm 1)
+    // and HEAAN. For the polynomial m with coefficients m_i = Re(vals[i]) and
+    // m_(i + slots) = Im(vals[i]), replaces vals[j] with m(ksi^(5^j)). A
+    // Cooley-Tukey FFT on bit-reversed input whose twiddles follow the rotation
+    // group instead of the powers of a single root
+    private void specialFft(ComplexVector vals) {
+        int n = vals.length();
+        int M = context.slots * 4;
+        double[] re = vals.re, im = vals.im;
+        double[] wRe = ksiPows.re, wIm = ksiPows.im;
+
+        bitReverse(re, im);
+
+        for (int len = 2; len <= n; len <<= 1) {
+            int lenh = len >> 1;
+            int lenq = len << 2;
+            int gap = M / lenq;
+
+            for (int i = 0; i < n; i += len) {
+                for (int j = 0; j < lenh; j++) {
+                    int w = (rotationGroup[j] % lenq) * gap;
+                    int u = i + j;
+                    int v = i + j + lenh;
+
+                    double vRe = re[v] * wRe[w] - im[v] * wIm[w];
+                    double vIm = re[v] * wIm[w] + im[v] * wRe[w];
+
+                    re[v] = re[u] - vRe;
+                    im[v] = im[u] - vIm;
+                    re[u] += vRe;
+                    im[u] += vIm;
                 }
             }
-            if (p != j) {
-                for (int k = 0; k < N; k++) {
-                    Complex t = new Complex(vandermondeLU[p][k]);
-                    vandermondeLU[p][k] = new Complex(vandermondeLU[j][k]);
-                    vandermondeLU[j][k] = new Complex(t);
-                }
-                int k = piv[p];
-                piv[p] = piv[j];
-                piv[j] = k;
-                pivsign = -pivsign;
-            }
+        }
+    }
 
-            // Compute multipliers.
-            if (j < N & !vandermondeLU[j][j].equal(new Complex(0, 0))) {
-                for (int i = j + 1; i < N; i++) {
-                    vandermondeLU[i][j].divide_inplace(vandermondeLU[j][j]);
+    // the inverse of specialFft. Gentleman-Sande with the inverse twiddles, then
+    // bit reversal and division by the number of slots
+    private void specialFftInverse(ComplexVector vals) {
+        int n = vals.length();
+        int M = context.slots * 4;
+        double[] re = vals.re, im = vals.im;
+        double[] wRe = ksiPows.re, wIm = ksiPows.im;
+
+        for (int len = n; len >= 2; len >>= 1) {
+            int lenh = len >> 1;
+            int lenq = len << 2;
+            int gap = M / lenq;
+
+            for (int i = 0; i < n; i += len) {
+                for (int j = 0; j < lenh; j++) {
+                    int w = (lenq - rotationGroup[j] % lenq) * gap;
+                    int u = i + j;
+                    int v = i + j + lenh;
+
+                    double diffRe = re[u] - re[v];
+                    double diffIm = im[u] - im[v];
+
+                    re[u] += re[v];
+                    im[u] += im[v];
+                    re[v] = diffRe * wRe[w] - diffIm * wIm[w];
+                    im[v] = diffRe * wIm[w] + diffIm * wRe[w];
                 }
             }
         }
-    }
 
-    private Complex[] expandVector(Complex[] vec) {
-        Complex[] expendedVec = new Complex[context.slots * 2];
+        bitReverse(re, im);
 
-        for (int i = 0; i < context.slots; i++)
-            if (i < vec.length)
-                expendedVec[i] = new Complex(vec[i]);
+        vals.scale_inplace(1.0 / n);
+    }
+
+    // For real slot values the embedding is a real transform of half the size. The
+    // slots' roots ksi^(5^j) are exactly the ksi^(4t + 1) for t < slots, i.e.
+    // ksi * rho^t where rho = ksi^4 is a primitive slots'th root of unity and
+    // t = (5^j - 1) / 4. So with w_i = (c_i + i c_(i + slots)) ksi^i, see
+    // specialFft, the j'th slot is the t'th term of the DFT of w of length slots.
+    // The DFT of real values is hermitian, and the real parts of a DFT are the DFT
+    // of the hermitian part of its input, so both directions are a DFT between a
+    // real sequence and a hermitian one. Such a DFT is done by a complex FFT of
+    // half the length, on the even and odd terms packed as real and imaginary
+    // parts, plus a linear pass that separates or combines the two halves
+
+    // coordinates = the N coefficients of the real polynomial whose evaluations
+    // at the slots' roots are scale * values, zero padded
+    private void realCoordinates(double[] values, double scale, double[] coordinates) {
+        int n = context.slots;
+        int h = n / 2;
+        int M = n * 4;
+        double[] wRe = ksiPows.re, wIm = ksiPows.im;
+
+        // y_t = scale * values[j], packed as p_s = y_2s + i y_(2s + 1)
+        double[] pRe = new double[h], pIm = new double[h];
+        for (int j = 0; j < values.length; j++) {
+            int t = (rotationGroup[j] - 1) >> 2;
+            if ((t & 1) == 0)
+                pRe[t >> 1] = values[j] * scale;
             else
-                expendedVec[i] = new Complex(0, 0);
+                pIm[t >> 1] = values[j] * scale;
+        }
 
-        for (int i = context.slots - 1; i >= 0; i--)
-            expendedVec[context.slots * 2 - 1 - i] = expendedVec[i].conj();
+        fft(pRe, pIm, false);
 
-        return expendedVec;
-    }
+        // Y_k = E_k + W^k O_k and Y_(k + h) = E_k - W^k O_k, where E and O are the
+        // DFTs of the even and odd terms and W = e^(-2 pi i / n). Then
+        // w_i = Y_i / n and c_i + i c_(i + n) = w_i ksi^-i
+        for (int k = 0; k < h; k++) {
+            int kc = (h - k) % h;
 
-    private void scaleVector(Complex[] vec) {
-        for (int i = 0; i < vec.length; i++)
-            vec[i].mult_inplace(new Complex(context.defaultScale));
-    }
+            double eRe = (pRe[k] + pRe[kc]) / 2;
+            double eIm = (pIm[k] - pIm[kc]) / 2;
+            double oRe = (pIm[k] + pIm[kc]) / 2;
+            double oIm = (pRe[kc] - pRe[k]) / 2;
 
-    private void discretizeVector(Complex[] vec) {
-        double[] coordinates = calcCoordinates(vec);
-        if (debug) {
-            System.out.println("Coordinates of vector in sigma(R)'s basis:");
-            System.out.println(Arrays.toString(coordinates));
+            int w = M - 4 * k;
+            double tRe = oRe * wRe[w] - oIm * wIm[w];
+            double tIm = oRe * wIm[w] + oIm * wRe[w];
 
-            System.out.println("Sanity check:");
-            Complex[] sanityCheck = Complex.multVectorByScalar(vandermondeTransposed[0], coordinates[0]);
-            for (int i = 1; i < vandermondeTransposed.length; i++)
-                Complex.addVectors_inplace(sanityCheck,
-                        Complex.multVectorByScalar(vandermondeTransposed[i], coordinates[i]));
-            System.out.println(Arrays.toString(sanityCheck));
-            System.out.println();
-        }
+            for (int half = 0; half < 2; half++) {
+                int i = k + half * h;
+                double yRe = (half == 0 ? eRe + tRe : eRe - tRe) / n;
+                double yIm = (half == 0 ? eIm + tIm : eIm - tIm) / n;
 
-        long[] roundedCoordinates = roundCoordinatesRandomly(coordinates);
-        if (debug) {
-            System.out.println("Coordinates rounded randomly:");
-            System.out.println(Arrays.toString(roundedCoordinates));
-            System.out.println();
+                int inv = M - i;
+                coordinates[i] = yRe * wRe[inv] - yIm * wIm[inv];
+                coordinates[i + n] = yRe * wIm[inv] + yIm * wRe[inv];
+            }
         }
-
-        // Generate discretized vector from basis and rounded coordinates
-        Complex.multVectorByScalar_inplace(vec, 0);
-        for (int i = 0; i < vandermondeTransposed.length; i++)
-            Complex.addVectors_inplace(vec,
-                    Complex.multVectorByScalar(vandermondeTransposed[i], roundedCoordinates[i]));
     }
 
-    private double[] calcCoordinates(Complex[] vec) {
-        double[] coordinates = new double[vec.length];
+    // res = the real parts of the evaluations of the real polynomial with the given
+    // N coefficients at the slots' roots
+    private void realEmbedding(double[] coeffs, double[] res) {
+        int n = context.slots;
+        int h = n / 2;
+        int M = n * 4;
+        double[] wRe = ksiPows.re, wIm = ksiPows.im;
+
+        // w_i = (c_i + i c_(i + n)) ksi^i
+        double[] uRe = new double[n], uIm = new double[n];
+        for (int i = 0; i < n; i++) {
+            uRe[i] = coeffs[i] * wRe[i] - coeffs[i + n] * wIm[i];
+            uIm[i] = coeffs[i] * wIm[i] + coeffs[i + n] * wRe[i];
+        }
 
-        for (int i = 0; i < vec.length; i++) {
-            double hermProd = Complex.hermitianProduct(vec, vandermondeTransposed[i]).re;
+        // X_k = (w_k + conj(w_(n - k))) / 2, the hermitian part of w, is the DFT of
+        // the real x_t. With X_(k + h) = conj(X_(h - k)), its even and odd terms
+        // have the DFTs E_k = X_k + X_(k + h) and O_k = (X_k - X_(k + h)) W^-k, up
+        // to a factor of 2 that cancels the 1 / 2 of the hermitian part. The FFT of
+        // P = E + iO is then x_2s + i x_(2s + 1)
+        double[] pRe = new double[h], pIm = new double[h];
+        for (int k = 0; k < h; k++) {
+            int k2 = h - k;
+
+            double xRe = (uRe[k] + uRe[(n - k) % n]) / 2;
+            double xIm = (uIm[k] - uIm[(n - k) % n]) / 2;
+            double x2Re = (uRe[k2] + uRe[n - k2]) / 2;
+            double x2Im = -(uIm[k2] - uIm[n - k2]) / 2;
+
+            double eRe = xRe + x2Re;
+            double eIm = xIm + x2Im;
+
+            int w = 4 * k;
+            double dRe = xRe - x2Re;
+            double dIm = xIm - x2Im;
+            double oRe = dRe * wRe[w] - dIm * wIm[w];
+            double oIm = dRe * wIm[w] + dIm * wRe[w];
+
+            pRe[k] = eRe - oIm;
+            pIm[k] = eIm + oRe;
+        }
 
-            double normSquared = Complex.hermitianProduct(vandermondeTransposed[i], vandermondeTransposed[i]).re;
+        fft(pRe, pIm, true);
 
-            coordinates[i] = hermProd / normSquared;
+        for (int j = 0; j < n; j++) {
+            int t = (rotationGroup[j] - 1) >> 2;
+            res[j] = (t & 1) == 0 ? pRe[t >> 1] : pIm[t >> 1];
         }
-
-        return coordinates;
     }
 
-    private long[] roundCoordinatesRandomly(double[] coordinates) {
-        long[] res = new long[coordinates.length];
+    // in-place DFT of length re.length, res_k = sum_s vals_s e^(-+ 2 pi i k s /
+    // length), with the positive sign if inverse and no scaling
+    private void fft(double[] re, double[] im, boolean inverse) {
+        int n = re.length;
+        int M = context.slots * 4;
+        double[] wRe = ksiPows.re, wIm = ksiPows.im;
 
-        for (int i = 0; i < coordinates.length; i++) {
-            double elem = coordinates[i];
-            long elemFloored = (long) Math.floor(elem);
+        bitReverse(re, im);
 
-            double distanceFromFloor = elem - elemFloored;
+        for (int len = 2; len <= n; len <<= 1) {
+            int lenh = len >> 1;
+            int step = M / len;
 
-            // uniform distribution over [0,1]
-            double rand = Math.random();
+            for (int i = 0; i < n; i += len) {
+                for (int j = 0; j < lenh; j++) {
+                    int w = inverse ? j * step : M - j * step;
+                    int u = i + j;
+                    int v = i + j + lenh;
 
-            // see
-            // https://stackoverflow.com/questions/40183948/how-to-generate-random-number-based-on-probability-in-java
-            if (distanceFromFloor < rand)
-                res[i] = elemFloored;
-            else
-                res[i] = elemFloored + 1;
-        }
+                    double vRe = re[v] * wRe[w] - im[v] * wIm[w];
+                    double vIm = re[v] * wIm[w] + im[v] * wRe[w];
 
-        return res;
+                    re[v] = re[u] - vRe;
+                    im[v] = im[u] - vIm;
+                    re[u] += vRe;
+                    im[u] += vIm;
+                }
+            }
+        }
     }
 
-    private long[] canonicalEmbeddingInverse(Complex[] vec) {
-        long[] coeffs = new long[context.slots * 2];
+    private static void bitReverse(double[] re, double[] im) {
+        int bits = Integer.numberOfTrailingZeros(re.length);
+        for (int i = 0; i < re.length; i++) {
+            int j = Maths.bitReverse(i, bits);
+            if (i < j) {
+                double tmp = re[i];
+                re[i] = re[j];
+                re[j] = tmp;
+
+                tmp = im[i];
+                im[i] = im[j];
+                im[j] = tmp;
+            }
+        }
+    }
 
-        // replace with matrix multiplication
-        Complex[] solution = solve(vec);
+    private long[] roundCoordinatesRandomly(double[] coordinates) {
+        long[] res = new long[coordinates.length];
 
-        for (int i = 0; i < coeffs.length; i++)
-            coeffs[i] = Math.round(solution[i].re);
+        for (int i = 0; i < coordinates.length; i++)
+            res[i] = roundRandomly(coordinates[i]);
 
-        return coeffs;
+        return res;
     }
 
-    // based on code from https://math.nist.gov/javanumerics/jama/
-    private Complex[] solve(Complex[] vec) {
-        int N = context.slots * 2;
-
-        // Copy right hand side with pivoting
-        Complex[] X = new Complex[vec.length];
+    // elem rounded down or up with probabilities such that the expected value is
+    // elem
+    private static long roundRandomly(double elem) {
+        long elemFloored = (long) Math.floor(elem);
 
-        for (int i = 0; i < piv.length; i++)
-            X[i] = new Complex(vec[piv[i]]);
+        double distanceFromFloor = elem - elemFloored;
 
-        // Solve L*Y = B(piv,:)
-        for (int k = 0; k < N; k++) {
-            for (int i = k + 1; i < N; i++) {
-                X[i].sub_inplace(X[k].mult(vandermondeLU[i][k]));
-            }
-        }
-        // Solve U*X = Y;
-        for (int k = N - 1; k >= 0; k--) {
-            X[k].divide_inplace(vandermondeLU[k][k]);
-
-            for (int i = 0; i < k; i++)
-                X[i].sub_inplace(X[k].mult(vandermondeLU[i][k]));
-        }
+        // uniform distribution over [0,1]
+        double rand = Math.random();
 
-        return X;
+        // see
+        // https://stackoverflow.com/questions/40183948/how-to-generate-random-number-based-on-probability-in-java
+        if (distanceFromFloor < rand)
+            return elemFloored;
+        else
+            return elemFloored + 1;
     }
 }
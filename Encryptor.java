@@ -12,9 +12,11 @@ public class Encryptor {
     }
 
     public void encrypt(Plaintext src, Ciphertext res) {
-        Polynomial v = KeyGenerator.ternaryDist(context, 0.5);
-        Polynomial e1 = KeyGenerator.ternaryDist(context, 0.5);
-        Polynomial e2 = KeyGenerator.ternaryDist(context, 0.5);
+        // only the limbs up to the plaintext's level, the public key's other limbs are
+        // ignored
+        Polynomial v = KeyGenerator.ternaryDist(context, 0.5, src.getLevel());
+        Polynomial e1 = KeyGenerator.ternaryDist(context, 0.5, src.getLevel());
+        Polynomial e2 = KeyGenerator.ternaryDist(context, 0.5, src.getLevel());
 
         if (debug) {
             System.out.println("Encryptor.encrypt");
@@ -32,8 +34,18 @@ public class Encryptor {
         Polynomial bKey = publicKey.getB();
         Polynomial aKey = publicKey.getA();
 
-        Polynomial b = v.mult(bKey).add(m).add(e1);
-        Polynomial a = v.mult(aKey).add(e2);
+        // b = v * bKey + m + e1, a = v * aKey + e2, accumulated into the noise
+        Polynomial b = e1;
+        b.add_inplace(m);
+        b.multiplyAdd(v, bKey);
+        Polynomial a = e2;
+        a.multiplyAdd(v, aKey);
+
+        // the ciphertext is stored the same way as the plaintext
+        if (m.isOffHeap()) {
+            b = m.newLike(b.getCrt());
+            a = m.newLike(a.getCrt());
+        }
 
         if (debug) {
             System.out.println("final b");
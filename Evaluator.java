@@ -1,6 +1,7 @@
 package ckks;
 
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Evaluator {
     final boolean debug = false;
@@ -9,9 +10,22 @@ public class Evaluator {
 
     private PublicKeys publicKey;
 
+    // encodes the per-slot constants of multConst
+    private Encoder encoder;
+
+    // the NTT permutations of the Galois automorphisms by Galois element, see
+    // Maths.galoisPermutation
+    private final ConcurrentHashMap<Integer, int[]> galoisPermutations = new ConcurrentHashMap<>();
+
+    // the temporaries of relinearization and rescaling, allocated once per thread
+    // so that these don't allocate
+    private final ThreadLocal<EvaluatorScratch> scratch;
+
     public Evaluator(Context context, PublicKeys publicKey) {
         this.context = context;
         this.publicKey = publicKey;
+        this.encoder = new Encoder(context);
+        this.scratch = ThreadLocal.withInitial(() -> new EvaluatorScratch(context));
     }
 
     // add
@@ -22,6 +36,7 @@ public class Evaluator {
     }
 
     public void add_inplace(Plaintext dest, Plaintext other) {
+        dest.assertWritable();
         assertNotEmpty(dest);
         assertNotEmpty(other);
 
@@ -37,6 +52,12 @@ public class Evaluator {
         return res;
     }
 
+    // dest = a + b, reusing the polynomials of dest where possible. dest may be a
+    public void add(Ciphertext a, Plaintext b, Ciphertext dest) {
+        assign(dest, a);
+        add_inplace(dest, b);
+    }
+
     public void add_inplace(Ciphertext dest, Plaintext other) {
         assertNotEmpty(dest);
         assertNotEmpty(other);
@@ -51,12 +72,49 @@ public class Evaluator {
         }
     }
 
+    // add a real constant
+    public Ciphertext addConst(Ciphertext c, double constant) {
+        Ciphertext res = new Ciphertext(c);
+        addConst_inplace(res, constant);
+        return res;
+    }
+
+    // the embedding of a constant is the constant polynomial, so the constant at
+    // the ciphertext's scale is added to every NTT evaluation of b, or of d0 for a
+    // ciphertext that isn't relinearized, without an encoding
+    public void addConst_inplace(Ciphertext dest, double constant) {
+        assertNotEmpty(dest);
+
+        // may be beyond the range of a long, e.g. at the squared scale of a degree 2
+        // ciphertext. The polynomials reduce it per prime
+        double scalar = Math.rint(constant * dest.getScale());
+        if (!Double.isFinite(scalar))
+            throw new IllegalArgumentException("Constant " + constant + " is too large for the scale");
+
+        if (dest.isLinear())
+            dest.getB().add_inplace(scalar);
+        else
+            dest.getD0().add_inplace(scalar);
+    }
+
     public Ciphertext add(Ciphertext a, Ciphertext b) {
         Ciphertext res = new Ciphertext(a);
         add_inplace(res, b);
         return res;
     }
 
+    // dest = a + b, reusing the polynomials of dest where possible. dest may be a
+    // or b
+    public void add(Ciphertext a, Ciphertext b, Ciphertext dest) {
+        if (dest == b) {
+            add_inplace(dest, a);
+            return;
+        }
+
+        assign(dest, a);
+        add_inplace(dest, b);
+    }
+
     public void add_inplace(Ciphertext dest, Ciphertext other) {
         assertNotEmpty(dest);
         assertNotEmpty(other);
@@ -92,6 +150,7 @@ public class Evaluator {
     }
 
     public void mult_inplace(Plaintext dest, int integer) {
+        dest.assertWritable();
         assertNotEmpty(dest);
 
         Polynomial mRes = dest.getM();
@@ -106,6 +165,7 @@ public class Evaluator {
     }
 
     public void mult_inplace(Plaintext dest, Plaintext other) {
+        dest.assertWritable();
         assertNotEmpty(dest);
         assertNotEmpty(other);
 
@@ -142,6 +202,12 @@ public class Evaluator {
         return res;
     }
 
+    // dest = a * b, reusing the polynomials of dest where possible. dest may be a
+    public void mult(Ciphertext a, Plaintext b, Ciphertext dest) {
+        assign(dest, a);
+        mult_inplace(dest, b);
+    }
+
     public void mult_inplace(Ciphertext dest, Plaintext other) {
         assertNotEmpty(dest);
         assertNotEmpty(other);
@@ -161,32 +227,108 @@ public class Evaluator {
         dest.setScale(dest.getScale() * other.getScale());
     }
 
-    public Ciphertext mult(Ciphertext a, Ciphertext b) {
-        Ciphertext res = new Ciphertext(a);
-        mult_inplace(res, b);
+    // mult by a real constant
+    public Ciphertext multConst(Ciphertext c, double constant) {
+        Ciphertext res = new Ciphertext(c);
+        multConst_inplace(res, constant);
         return res;
     }
 
-    public void mult_inplace(Ciphertext dest, Ciphertext other) {
+    // the embedding of a constant is the constant polynomial, whose NTT has the
+    // constant in every evaluation. So the constant, scaled by the default scale
+    // like an encoded plaintext, is multiplied into every limb as a scalar,
+    // without an encoding. Works for ciphertexts of degree 1 and 2. Rescale
+    // afterwards as with a plaintext
+    public void multConst_inplace(Ciphertext dest, double constant) {
         assertNotEmpty(dest);
-        assertNotEmpty(other);
+        assertNonZeroLevel(dest);
+
+        // may be beyond the range of a long, the polynomials reduce it per prime
+        double scalar = Math.rint(constant * context.defaultScale);
+        if (!Double.isFinite(scalar))
+            throw new IllegalArgumentException("Constant " + constant + " is too large for the scale");
+
+        if (dest.isLinear()) {
+            dest.getB().mult_inplace(scalar);
+            dest.getA().mult_inplace(scalar);
+        } else {
+            dest.getD0().mult_inplace(scalar);
+            dest.getD1().mult_inplace(scalar);
+            dest.getD2().mult_inplace(scalar);
+        }
+
+        dest.setScale(dest.getScale() * context.defaultScale);
+    }
+
+    // mult by a real constant per slot
+    public Ciphertext multConst(Ciphertext c, double[] perSlot) {
+        Ciphertext res = new Ciphertext(c);
+        multConst_inplace(res, perSlot);
+        return res;
+    }
 
+    // constants that differ between slots are not a constant polynomial, so these
+    // are encoded, though only at the ciphertext's level and with the half size
+    // real transform, see Encoder.encode(double[], int, double, Plaintext). Works
+    // for ciphertexts of degree 1 and 2
+    public void multConst_inplace(Ciphertext dest, double[] perSlot) {
+        assertNotEmpty(dest);
         assertNonZeroLevel(dest);
-        assertNonZeroLevel(other);
 
-        assertRelinearized(dest);
-        assertRelinearized(other);
+        Plaintext p = new Plaintext(context);
+        encoder.encode(perSlot, dest.getLevel(), context.defaultScale, p);
 
-        Polynomial aRes = dest.getA();
-        Polynomial bRes = dest.getB();
-        Polynomial aOther = other.getA();
-        Polynomial bOther = other.getB();
+        Polynomial m = p.getM();
+        if (dest.isLinear()) {
+            dest.getB().mult_inplace(m);
+            dest.getA().mult_inplace(m);
+        } else {
+            dest.getD0().mult_inplace(m);
+            dest.getD1().mult_inplace(m);
+            dest.getD2().mult_inplace(m);
+        }
+
+        dest.setScale(dest.getScale() * p.getScale());
+    }
+
+    public Ciphertext mult(Ciphertext a, Ciphertext b) {
+        Ciphertext res = new Ciphertext(context);
+        mult(a, b, res);
+        return res;
+    }
+
+    public void mult_inplace(Ciphertext dest, Ciphertext other) {
+        mult(dest, other, dest);
+    }
+
+    // dest = a * b, at the level of a. The polynomials of dest, including the one
+    // kept from its last relinearization, are reused where possible. dest may be a
+    // or b
+    public void mult(Ciphertext a, Ciphertext b, Ciphertext dest) {
+        assertNotEmpty(a);
+        assertNotEmpty(b);
+
+        assertNonZeroLevel(a);
+        assertNonZeroLevel(b);
+
+        assertRelinearized(a);
+        assertRelinearized(b);
+
+        if (b.getLevel() < a.getLevel())
+            throw new IllegalArgumentException(
+                    "Operand level " + b.getLevel() + " is lower than the ciphertext's level " + a.getLevel());
+
+        int level = a.getLevel();
+        double scale = a.getScale() * b.getScale();
 
-        Polynomial d0 = bRes.mult(bOther);
-        Polynomial d1 = bRes.mult(aOther).add(aRes.mult(bOther));
-        Polynomial d2 = aRes.mult(aOther);
+        Polynomial d0 = reuse(dest.isLinear() ? dest.getB() : dest.getD0(), a.getB(), level);
+        Polynomial d1 = reuse(dest.isLinear() ? dest.getA() : dest.getD1(), a.getA(), level);
+        Polynomial d2 = reuse(dest.isLinear() ? dest.getSpare() : dest.getD2(), a.getA(), level);
 
-        dest.afterMult(d0, d1, d2, other.getScale() * dest.getScale());
+        Polynomial.tensor(a.getB(), a.getA(), b.getB(), b.getA(), d0, d1, d2);
+
+        dest.afterMult(d0, d1, d2, scale);
+        dest.setLevel(level);
     }
 
     // relinearize
@@ -201,101 +343,181 @@ public class Evaluator {
         if (src.getD2() == null)
             return;
 
-        long[][] d2 = src.getD2().getCrt();
+        EvaluatorScratch s = scratch.get();
+
+        Polynomial d2 = src.getD2();
+        int level = src.getLevel();
 
         if (debug) {
             System.out.println("Evaluator.relinearize_inplace");
             System.out.println("src D2");
-            System.out.println(Arrays.deepToString(d2));
+            d2.debugPrint();
             System.out.println();
         }
 
-        Maths.nttInverse_inplace(context, d2, src.getLevel());
+        decompose(s, d2, level);
 
         if (debug) {
-            System.out.println("D2 after NTT inverse");
-            System.out.println(Arrays.deepToString(d2));
+            System.out.println("D2 after mod up and NTT");
+            System.out.println(Arrays.toString(s.extended));
             System.out.println();
         }
 
-        long[][] d2ModedUp = Maths.modUp(context, d2, src.getLevel());
+        multByKeys(s, level, s.extended, publicKey.relinKeyB, publicKey.relinKeyA);
 
         if (debug) {
-            System.out.println("D2 after mod up");
-            System.out.println(Arrays.deepToString(d2ModedUp));
+            System.out.println("c0ModedUp");
+            System.out.println(Arrays.toString(s.extended0));
+            System.out.println();
+            System.out.println("c1ModedUp");
+            System.out.println(Arrays.toString(s.extended1));
             System.out.println();
         }
 
-        long[][] c0Coeffs = new long[d2ModedUp.length][d2ModedUp[0].length];
-        long[][] c1Coeffs = new long[d2ModedUp.length][d2ModedUp[0].length];
+        // add c0 to d0 and c1 to d1, in place
+        Polynomial b = src.getD0();
+        Polynomial a = src.getD1();
 
-        long[][] relinKeyB = publicKey.getRelinKeyB();
-        long[][] relinKeyA = publicKey.getRelinKeyA();
+        Maths.modDownNtt(context, s.extended0, level, s.coeffs1, s.tempCoeffs, s.scaled);
+        b.add_inplace(s.poly1);
+
+        Maths.modDownNtt(context, s.extended1, level, s.coeffs1, s.tempCoeffs, s.scaled);
+        a.add_inplace(s.poly1);
 
         if (debug) {
-            System.out.println("relinKeyB");
-            System.out.println(Arrays.deepToString(relinKeyB));
+            System.out.println("final b");
+            b.debugPrint();
             System.out.println();
-            System.out.println("relinKeyA");
-            System.out.println(Arrays.deepToString(relinKeyA));
+            System.out.println("final a");
+            a.debugPrint();
             System.out.println();
         }
 
-        // mult by relinearization key
-        for (int primeIdx = 0; primeIdx <= src.getLevel(); primeIdx++)
-            c0Coeffs[primeIdx] = Maths.multPolynominalsMod(d2ModedUp[primeIdx], relinKeyB[primeIdx],
-                    context.primes[primeIdx]);
-        for (int tempPrimeIdx = 0; tempPrimeIdx < context.tempPrimes.length; tempPrimeIdx++)
-            c0Coeffs[context.primes.length + tempPrimeIdx] = Maths.multPolynominalsMod(
-                    d2ModedUp[context.primes.length + tempPrimeIdx], relinKeyB[context.primes.length + tempPrimeIdx],
-                    context.tempPrimes[tempPrimeIdx]);
-
-        for (int primeIdx = 0; primeIdx <= src.getLevel(); primeIdx++)
-            c1Coeffs[primeIdx] = Maths.multPolynominalsMod(d2ModedUp[primeIdx], relinKeyA[primeIdx],
-                    context.primes[primeIdx]);
-        for (int tempPrimeIdx = 0; tempPrimeIdx < context.tempPrimes.length; tempPrimeIdx++)
-            c1Coeffs[context.primes.length + tempPrimeIdx] = Maths.multPolynominalsMod(
-                    d2ModedUp[context.primes.length + tempPrimeIdx], relinKeyA[context.primes.length + tempPrimeIdx],
-                    context.tempPrimes[tempPrimeIdx]);
+        src.afterRelinearization(b, a);
+    }
 
-        if (debug) {
-            System.out.println("c0Coeffs");
-            System.out.println(Arrays.deepToString(c0Coeffs));
-            System.out.println();
-            System.out.println("c1Coeffs");
-            System.out.println(Arrays.deepToString(c1Coeffs));
-            System.out.println();
-        }
+    // rotate
+    public Ciphertext rotate(Ciphertext c, int steps) {
+        Ciphertext res = new Ciphertext(c);
+        rotate_inplace(res, steps);
+        return res;
+    }
 
-        long[][] c0ntt = Maths.ntt(context, Maths.modDown(context, c0Coeffs, src.getLevel()), src.getLevel());
-        long[][] c1ntt = Maths.ntt(context, Maths.modDown(context, c1Coeffs, src.getLevel()), src.getLevel());
+    // slot i becomes slot (i + steps) mod slots of c, i.e. the slots are rotated
+    // left by steps, or right for negative steps. Needs the Galois key of steps,
+    // see KeyGenerator.genRotationKeys
+    public void rotate_inplace(Ciphertext c, int steps) {
+        assertNotEmpty(c);
 
-        if (debug) {
-            System.out.println("C0 after mod down and NTT");
-            System.out.println(Arrays.deepToString(c0ntt));
-            System.out.println();
-            System.out.println("C1 after mod down and NTT");
-            System.out.println(Arrays.deepToString(c1ntt));
-            System.out.println();
+        if (Math.floorMod(steps, context.slots) == 0)
+            return;
+
+        applyGalois(c, Maths.rotationGaloisElement(context.slots * 2, steps));
+    }
+
+    // conjugate
+    public Ciphertext conjugate(Ciphertext c) {
+        Ciphertext res = new Ciphertext(c);
+        conjugate_inplace(res);
+        return res;
+    }
+
+    // conjugates every slot. Needs the Galois key of KeyGenerator.genConjugationKey
+    public void conjugate_inplace(Ciphertext c) {
+        applyGalois(c, Maths.conjugationGaloisElement(context.slots * 2));
+    }
+
+    // the rotations of c by each of steps, as rotate would return them. Rotations
+    // of the same ciphertext share the expensive part of key switching, the inverse
+    // NTT and mod up of a, which is done once; each rotation then only permutes it,
+    // multiplies it by its Galois key and mods it down. Needs the Galois keys of
+    // all the steps, see KeyGenerator.genRotationKeys
+    public Ciphertext[] rotateMany(Ciphertext c, int[] steps) {
+        assertNotEmpty(c);
+        assertRelinearized(c);
+
+        // look up every key first, so that a missing one fails before any work
+        int[] galoisElts = new int[steps.length];
+        PolynomialStorage[][] galoisKeys = new PolynomialStorage[steps.length][];
+        boolean rotates = false;
+        for (int i = 0; i < steps.length; i++) {
+            if (Math.floorMod(steps[i], context.slots) == 0)
+                continue;
+
+            galoisElts[i] = Maths.rotationGaloisElement(context.slots * 2, steps[i]);
+            galoisKeys[i] = galoisKey(galoisElts[i]);
+            rotates = true;
         }
 
-        Polynomial c0 = new Polynomial(context, c0ntt);
-        Polynomial c1 = new Polynomial(context, c1ntt);
+        EvaluatorScratch s = scratch.get();
 
-        // add c0 to d0 and c1 to d1
-        Polynomial b = src.getD0().add(c0);
-        Polynomial a = src.getD1().add(c1);
+        if (rotates)
+            decompose(s, c.getA(), c.getLevel());
 
-        if (debug) {
-            System.out.println("final b");
-            b.debugPrint();
-            System.out.println();
-            System.out.println("final a");
-            a.debugPrint();
-            System.out.println();
+        Ciphertext[] res = new Ciphertext[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            res[i] = new Ciphertext(c);
+            if (galoisKeys[i] != null)
+                switchGaloisKey(s, c, galoisElts[i], galoisKeys[i], res[i]);
         }
 
-        src.afterRelinearization(b, a);
+        return res;
+    }
+
+    // c = the automorphism X -> X^galoisElt of c, which is then encrypted under the
+    // automorphism of s, and key switched back to s with the Galois key. In NTT
+    // form the automorphism is a permutation of each limb. It commutes with mod
+    // up, which works coefficient by coefficient, so a is decomposed as in
+    // relinearization and then permuted
+    private void applyGalois(Ciphertext c, int galoisElt) {
+        assertNotEmpty(c);
+        assertRelinearized(c);
+
+        PolynomialStorage[] galoisKey = galoisKey(galoisElt);
+
+        EvaluatorScratch s = scratch.get();
+
+        decompose(s, c.getA(), c.getLevel());
+        switchGaloisKey(s, c, galoisElt, galoisKey, c);
+    }
+
+    // res = the automorphism of c key switched back to s, where s.extended holds
+    // the decomposition of c's a, which is left as it is. res may be c
+    private void switchGaloisKey(EvaluatorScratch s, Ciphertext c, int galoisElt, PolynomialStorage[] galoisKey,
+            Ciphertext res) {
+        int level = c.getLevel();
+        int N = context.slots * 2;
+        int length = (level + 1) * N;
+        int[] perm = galoisPermutation(galoisElt);
+
+        Maths.permuteLimbs(s.extended, s.permuted, perm, level + 1 + context.tempPrimes.length);
+        multByKeys(s, level, s.permuted, galoisKey[0], galoisKey[1]);
+
+        // b = the automorphism of b + c0
+        Polynomial b = res.getB();
+        c.getB().copyTo(0, s.coeffs0, 0, length);
+        Maths.permuteLimbs(s.coeffs0, s.coeffs1, perm, level + 1);
+        b.copyFrom(s.coeffs1, 0, 0, length);
+
+        Maths.modDownNtt(context, s.extended0, level, s.coeffs1, s.tempCoeffs, s.scaled);
+        b.add_inplace(s.poly1);
+
+        // a = c1
+        Maths.modDownNtt(context, s.extended1, level, s.coeffs1, s.tempCoeffs, s.scaled);
+        res.getA().copyFrom(s.coeffs1, 0, 0, length);
+    }
+
+    private PolynomialStorage[] galoisKey(int galoisElt) {
+        PolynomialStorage[] galoisKey = publicKey.getGaloisKeys(galoisElt);
+        if (galoisKey == null)
+            throw new IllegalStateException("No Galois key for the Galois element " + galoisElt);
+
+        return galoisKey;
+    }
+
+    private int[] galoisPermutation(int galoisElt) {
+        return galoisPermutations.computeIfAbsent(galoisElt,
+                elt -> Maths.galoisPermutation(context.slots * 2, elt));
     }
 
     // rescale
@@ -313,75 +535,231 @@ public class Evaluator {
         if (src.getScale() < 2 * context.defaultScale)
             return;
 
+        EvaluatorScratch s = scratch.get();
+
+        Polynomial b = src.getB();
+        Polynomial a = src.getA();
+        int level = src.getLevel();
+        int N = context.slots * 2;
+
         if (debug) {
             System.out.println("Evaluator.rescale_inplace");
             System.out.println("src B");
-            System.out.println(Arrays.deepToString(src.getB().getCrt()));
+            b.debugPrint();
             System.out.println("src A");
-            System.out.println(Arrays.deepToString(src.getA().getCrt()));
-            System.out.println("src level= " + src.getLevel() + ", src scale= " + src.getScale());
+            a.debugPrint();
+            System.out.println("src level= " + level + ", src scale= " + src.getScale());
             System.out.println();
         }
 
-        long[][] c0coeffs = Maths.nttInverse(context, src.getB().getCrt(),
-                src.getLevel());
-        long[][] c1coeffs = Maths.nttInverse(context, src.getA().getCrt(),
-                src.getLevel());
+        long[] c0coeffs = s.coeffs0;
+        long[] c1coeffs = s.coeffs1;
+        b.copyTo(0, c0coeffs, 0, (level + 1) * N);
+        a.copyTo(0, c1coeffs, 0, (level + 1) * N);
+        Maths.nttInverse_inplace(context, c0coeffs, level);
+        Maths.nttInverse_inplace(context, c1coeffs, level);
 
         if (debug) {
             System.out.println("c0 coeffs");
-            System.out.println(Arrays.deepToString(c0coeffs));
+            System.out.println(Arrays.toString(Arrays.copyOf(c0coeffs, (level + 1) * N)));
             System.out.println("c1 coeffs");
-            System.out.println(Arrays.deepToString(c1coeffs));
-            System.out.println("Top level prime= " + context.primes[src.getLevel()]);
+            System.out.println(Arrays.toString(Arrays.copyOf(c1coeffs, (level + 1) * N)));
+            System.out.println("Top level prime= " + context.primes[level]);
             System.out.println();
         }
 
-        for (int primeIdx = 0; primeIdx < src.getLevel(); primeIdx++) {
-            if (debug) {
-                System.out.println("Current prime= " + context.primes[primeIdx]
-                        + ", top level prime inverse modulo current prime= "
-                        + context.otherPrimesInv[primeIdx][src.getLevel()] + "\n");
-            }
-
-            for (int coeffIdx = 0; coeffIdx < context.slots * 2; coeffIdx++) {
-                c0coeffs[primeIdx][coeffIdx] = Maths.mod(
-                        c0coeffs[primeIdx][coeffIdx] - c0coeffs[src.getLevel()][coeffIdx], context.primes[primeIdx]);
-                c0coeffs[primeIdx][coeffIdx] = Maths.modMult(c0coeffs[primeIdx][coeffIdx],
-                        context.otherPrimesInv[primeIdx][src.getLevel()], context.primes[primeIdx]);
+        int topOffset = level * N;
 
-                c1coeffs[primeIdx][coeffIdx] = Maths.mod(
-                        c1coeffs[primeIdx][coeffIdx] - c1coeffs[src.getLevel()][coeffIdx], context.primes[primeIdx]);
-                c1coeffs[primeIdx][coeffIdx] = Maths.modMult(c1coeffs[primeIdx][coeffIdx],
-                        context.otherPrimesInv[primeIdx][src.getLevel()], context.primes[primeIdx]);
+        if (Parallel.enabled(context, level * N)) {
+            Parallel.forEachLimb(context, level, N, (primeIdx, from, to) -> divideByTopPrime(c0coeffs, c1coeffs,
+                    level, primeIdx * N + from, primeIdx * N + to, primeIdx));
+        } else {
+            for (int primeIdx = 0; primeIdx < level; primeIdx++) {
+                if (debug) {
+                    System.out.println("Current prime= " + context.primes[primeIdx]
+                            + ", top level prime inverse modulo current prime= "
+                            + context.otherPrimesInv[primeIdx][level] + "\n");
+                }
+
+                divideByTopPrime(c0coeffs, c1coeffs, level, primeIdx * N, (primeIdx + 1) * N, primeIdx);
             }
         }
 
-        if (debug) {
-            System.out.println("c0 coeffs rescaled");
-            System.out.println(Arrays.deepToString(c0coeffs));
-            System.out.println("c1 coeffs rescaled");
-            System.out.println(Arrays.deepToString(c1coeffs));
-            System.out.println();
-        }
-
-        long[][] c0ntt = Maths.ntt(context, c0coeffs, src.getLevel() - 1);
-        long[][] c1ntt = Maths.ntt(context, c1coeffs, src.getLevel() - 1);
+        Maths.ntt_inplace(context, c0coeffs, level - 1);
+        Maths.ntt_inplace(context, c1coeffs, level - 1);
 
-        Polynomial b = new Polynomial(context, c0ntt);
-        Polynomial a = new Polynomial(context, c1ntt);
+        // the top limb is dropped, and the rest written back in place
+        b.reset(level - 1);
+        a.reset(level - 1);
+        b.copyFrom(c0coeffs, 0, 0, topOffset);
+        a.copyFrom(c1coeffs, 0, 0, topOffset);
 
         if (debug) {
             System.out.println("Final b");
             b.debugPrint();
             System.out.println("Final a");
             a.debugPrint();
-            System.out.println("New level= " + (src.getLevel() - 1) + ", new scale= "
-                    + (src.getScale() / context.primes[src.getLevel()]));
+            System.out.println("New level= " + (level - 1) + ", new scale= " + (src.getScale() / context.primes[level]));
+            System.out.println();
+        }
+
+        src.afterRescale(b, a, src.getScale() / context.primes[level], level - 1);
+    }
+
+    // c = (c - c mod topPrime) / topPrime on [from, to) of both c0coeffs and c1coeffs,
+    // all in the limb of the prime at primeIdx, where topPrime is the prime of the
+    // level
+    private void divideByTopPrime(long[] c0coeffs, long[] c1coeffs, int level, int from, int to, int primeIdx) {
+        // from the limb of primeIdx to the same coefficient in the top limb
+        int topDistance = (level - primeIdx) * context.slots * 2;
+
+        long prime = context.primes[primeIdx];
+        long topPrimeInv = context.otherPrimesInv[primeIdx][level];
+        long topPrimeInvShoup = context.otherPrimesInvShoup[primeIdx][level];
+
+        // the top prime has no more bits than this one (unless this is the first,
+        // larger, prime), so the top limb's coefficients are below 2 * prime and
+        // conditional subtractions reduce everything without a division
+        for (int i = from; i < to; i++) {
+            long top = c0coeffs[topDistance + i];
+            if (top >= prime)
+                top -= prime;
+            long diff = c0coeffs[i] - top;
+            if (diff < 0)
+                diff += prime;
+            c0coeffs[i] = Maths.shoupMult(diff, topPrimeInv, topPrimeInvShoup, prime);
+
+            top = c1coeffs[topDistance + i];
+            if (top >= prime)
+                top -= prime;
+            diff = c1coeffs[i] - top;
+            if (diff < 0)
+                diff += prime;
+            c1coeffs[i] = Maths.shoupMult(diff, topPrimeInv, topPrimeInvShoup, prime);
+        }
+    }
+
+    // s.extended = poly at level, in NTT form over the regular primes up to level
+    // followed by the temp primes, via its coefficients and Maths.modUp
+    private void decompose(EvaluatorScratch s, Polynomial poly, int level) {
+        int N = context.slots * 2;
+        int tempOffset = (level + 1) * N;
+
+        poly.copyTo(0, s.coeffs0, 0, tempOffset);
+        Maths.nttInverse_inplace(context, s.coeffs0, level);
+
+        if (debug) {
+            System.out.println("Polynomial after NTT inverse");
+            System.out.println(Arrays.toString(Arrays.copyOf(s.coeffs0, tempOffset)));
             System.out.println();
         }
 
-        src.afterRescale(b, a, src.getScale() / context.primes[src.getLevel()], src.getLevel() - 1);
+        Maths.modUp(context, s.coeffs0, level, s.extended, s.scaled);
+
+        // mod up leaves the regular primes' limbs as they are, and we already have those
+        // in NTT form
+        poly.copyTo(0, s.extended, 0, tempOffset);
+        Maths.nttTempPrimes_inplace(context, s.extended, tempOffset);
+    }
+
+    // s.extended0 = extended * keyB and s.extended1 = extended * keyA, where
+    // extended is the output of decompose and the keys are in NTT form, limb by limb
+    // over the regular primes up to the level and the temp primes
+    private void multByKeys(EvaluatorScratch s, int level, long[] extended, PolynomialStorage keyB,
+            PolynomialStorage keyA) {
+        int N = context.slots * 2;
+        int limbs = level + 1 + context.tempPrimes.length;
+
+        if (Parallel.enabled(context, limbs * N)) {
+            Parallel.forEachLimb(context, limbs, N, (limbIdx, from, to) -> multByKeys(s, level, extended, keyB,
+                    keyA, limbIdx, from, to - from, null));
+        } else {
+            for (int limbIdx = 0; limbIdx < limbs; limbIdx++)
+                multByKeys(s, level, extended, keyB, keyA, limbIdx, 0, N, s.limb);
+        }
+    }
+
+    // same, on [from, from + length) of the limb at limbIdx of extended, i.e. of a
+    // regular prime up to level or of a temp prime after those
+    private void multByKeys(EvaluatorScratch s, int level, long[] extended, PolynomialStorage keyB,
+            PolynomialStorage keyA, int limbIdx, int from, int length, long[] keyScratch) {
+        int N = context.slots * 2;
+
+        long m, mInv, r2;
+        int keyLimbIdx;
+        if (limbIdx <= level) {
+            m = context.primes[limbIdx];
+            mInv = context.primesMontInvs[limbIdx];
+            r2 = context.primesMontR2s[limbIdx];
+            keyLimbIdx = limbIdx;
+        } else {
+            // the keys hold the limbs of all the regular primes, so their temp primes'
+            // limbs are further down than those of d2
+            int tempPrimeIdx = limbIdx - level - 1;
+            m = context.tempPrimes[tempPrimeIdx];
+            mInv = context.tempPrimesMontInvs[tempPrimeIdx];
+            r2 = context.tempPrimesMontR2s[tempPrimeIdx];
+            keyLimbIdx = context.primes.length + tempPrimeIdx;
+        }
+
+        int offset = limbIdx * N + from;
+        int keyOffset = keyLimbIdx * N + from;
+        multByKeyLimb(s.extended0, extended, offset, length, keyB, keyOffset, m, mInv, r2, keyScratch);
+        multByKeyLimb(s.extended1, extended, offset, length, keyA, keyOffset, m, mInv, r2, keyScratch);
+    }
+
+    // dest[offset, offset + length) = src[offset, offset + length) *
+    // key[keyOffset, keyOffset + length) mod m, pointwise. An off-heap key is
+    // first copied to scratch, or to a new array if scratch is null
+    private void multByKeyLimb(long[] dest, long[] src, int offset, int length, PolynomialStorage key,
+            int keyOffset, long m, long mInv, long r2, long[] scratch) {
+        long[] keyValues = key.array();
+        if (keyValues == null) {
+            if (scratch == null)
+                scratch = new long[length];
+            key.copyTo(keyOffset, scratch, 0, length);
+            keyValues = scratch;
+            keyOffset = 0;
+        }
+
+        for (int i = 0; i < length; i++)
+            dest[offset + i] = Maths.modMult(src[offset + i], keyValues[keyOffset + i], m, mInv, r2);
+    }
+
+    // poly at level, reusing its storage when possible, or a new polynomial stored
+    // like like if there is none
+    private static Polynomial reuse(Polynomial poly, Polynomial like, int level) {
+        if (poly == null)
+            return like.newLike(level);
+
+        poly.reset(level);
+        return poly;
+    }
+
+    // makes dest a copy of src, reusing the polynomials of dest where possible
+    private static void assign(Ciphertext dest, Ciphertext src) {
+        if (dest == src)
+            return;
+
+        if (src.isLinear()) {
+            Polynomial b = reuseCopy(dest.isLinear() ? dest.getB() : dest.getD0(), src.getB());
+            Polynomial a = reuseCopy(dest.isLinear() ? dest.getA() : dest.getD1(), src.getA());
+            dest.init(b, a, src.getLevel(), src.getScale());
+        } else {
+            Polynomial d0 = reuseCopy(dest.isLinear() ? dest.getB() : dest.getD0(), src.getD0());
+            Polynomial d1 = reuseCopy(dest.isLinear() ? dest.getA() : dest.getD1(), src.getD1());
+            Polynomial d2 = reuseCopy(dest.isLinear() ? dest.getSpare() : dest.getD2(), src.getD2());
+            dest.afterMult(d0, d1, d2, src.getScale());
+            dest.setLevel(src.getLevel());
+        }
+    }
+
+    private static Polynomial reuseCopy(Polynomial poly, Polynomial src) {
+        if (poly == null)
+            return new Polynomial(src);
+
+        poly.copyFrom(src);
+        return poly;
     }
 
     private void assertNotEmpty(Ciphertext c) {
@@ -405,7 +783,7 @@ public class Evaluator {
     }
 
     private void assertRelinearized(Ciphertext c) {
-        if (c.isEmpty())
+        if (c.isEmpty() || !c.isLinear())
             throw new IllegalStateException("Ciphertext is not relinearized.");
     }
 
@@ -0,0 +1,47 @@
+package ckks;
+
+// Temporaries of the Evaluator, sized for the top level so that every operation
+// of a thread can reuse them whatever the level of its operands, see
+// Evaluator.scratch
+final class EvaluatorScratch {
+    // the limbs of the regular primes, (top level + 1) * N values each
+    final long[] coeffs0, coeffs1;
+
+    // coeffs1 as a polynomial at the top level
+    final Polynomial poly1;
+
+    // the limbs of the regular primes followed by those of the temp primes, as
+    // produced by Maths.modUp
+    final long[] extended, extended0, extended1;
+
+    // the automorphism of extended, see Evaluator.rotate
+    final long[] permuted;
+
+    // the limbs of the temp primes only
+    final long[] tempCoeffs;
+
+    // one value per regular or temp prime
+    final long[] scaled;
+
+    // a single limb
+    final long[] limb;
+
+    EvaluatorScratch(Context context) {
+        int N = context.slots * 2;
+        int primes = context.primes.length;
+        int tempPrimes = context.tempPrimes.length;
+
+        coeffs0 = new long[primes * N];
+        coeffs1 = new long[primes * N];
+        poly1 = new Polynomial(context, coeffs1);
+
+        extended = new long[(primes + tempPrimes) * N];
+        extended0 = new long[(primes + tempPrimes) * N];
+        extended1 = new long[(primes + tempPrimes) * N];
+        permuted = new long[(primes + tempPrimes) * N];
+
+        tempCoeffs = new long[tempPrimes * N];
+        scaled = new long[Math.max(primes, tempPrimes)];
+        limb = new long[N];
+    }
+}
@@ -0,0 +1,56 @@
+package ckks;
+
+import java.util.Arrays;
+
+final class HeapStorage implements PolynomialStorage {
+    private final long[] values;
+
+    HeapStorage(long[] values) {
+        this.values = values;
+    }
+
+    @Override
+    public int length() {
+        return values.length;
+    }
+
+    @Override
+    public long get(int idx) {
+        return values[idx];
+    }
+
+    @Override
+    public void set(int idx, long value) {
+        values[idx] = value;
+    }
+
+    @Override
+    public void copyTo(int idx, long[] dest, int destIdx, int length) {
+        System.arraycopy(values, idx, dest, destIdx, length);
+    }
+
+    @Override
+    public void copyFrom(long[] src, int srcIdx, int idx, int length) {
+        System.arraycopy(src, srcIdx, values, idx, length);
+    }
+
+    @Override
+    public PolynomialStorage copy(int length) {
+        return new HeapStorage(Arrays.copyOf(values, length));
+    }
+
+    @Override
+    public PolynomialStorage allocate(int length) {
+        return new HeapStorage(new long[length]);
+    }
+
+    @Override
+    public PolynomialStorage from(long[] values) {
+        return new HeapStorage(values);
+    }
+
+    @Override
+    public long[] array() {
+        return values;
+    }
+}
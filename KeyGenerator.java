@@ -12,6 +12,9 @@ public class KeyGenerator {
 
     private long[] sCoeffs;
 
+    // s in NTT form over the regular and temp primes, for the key switching keys
+    private long[] sNtt;
+
     private PublicKeys publicKeys;
 
     public KeyGenerator(Context context) {
@@ -30,7 +33,25 @@ public class KeyGenerator {
         return publicKeys;
     }
 
+    // adds to the public keys the Galois keys for rotating the slots left by each
+    // of steps, see Evaluator.rotate. Steps are taken modulo the number of slots
+    public void genRotationKeys(int... steps) {
+        for (int step : steps)
+            if (Math.floorMod(step, context.slots) != 0)
+                genGaloisKey(Maths.rotationGaloisElement(context.slots * 2, step));
+    }
+
+    // adds to the public keys the Galois key of Evaluator.conjugate
+    public void genConjugationKey() {
+        genGaloisKey(Maths.conjugationGaloisElement(context.slots * 2));
+    }
+
     public static Polynomial ternaryDist(Context context, double rho) {
+        return ternaryDist(context, rho, context.primes.length - 1);
+    }
+
+    // same, with the limbs of the primes up to level only
+    public static Polynomial ternaryDist(Context context, double rho, int level) {
         int N = context.slots * 2;
         long[] coeffs = Maths.ternaryDist(N, rho);
 
@@ -39,8 +60,8 @@ public class KeyGenerator {
             System.out.println(Arrays.toString(coeffs));
         }
 
-        long[][] rnsCoeffs = Maths.rns(context, coeffs);
-        Maths.ntt_inplace(context, rnsCoeffs, context.primes.length - 1);
+        long[] rnsCoeffs = Maths.rns(context, coeffs, level);
+        Maths.ntt_inplace(context, rnsCoeffs, level);
 
         return new Polynomial(context, rnsCoeffs);
     }
@@ -48,7 +69,7 @@ public class KeyGenerator {
     private void genSecretKey() {
         sCoeffs = Maths.ternaryDist(context.slots * 2, 0.5);
 
-        long[][] rnsCoeffs = Maths.rns(context, sCoeffs);
+        long[] rnsCoeffs = Maths.rns(context, sCoeffs);
         Maths.ntt_inplace(context, rnsCoeffs, context.primes.length - 1);
 
         Polynomial s = new Polynomial(context, rnsCoeffs);
@@ -67,16 +88,15 @@ public class KeyGenerator {
 
     private void genPublicKeys() {
         // uniform distribution
-        long[][] aCrt = new long[context.primes.length][context.slots * 2];
+        int N = context.slots * 2;
+
+        long[] aCrt = new long[context.primes.length * N];
         for (int primeIdx = 0; primeIdx < context.primes.length; primeIdx++)
-            for (int i = 0; i < context.slots * 2; i++)
-                aCrt[primeIdx][i] = ThreadLocalRandom.current().nextLong(0, context.primes[primeIdx]);
+            for (int i = primeIdx * N; i < (primeIdx + 1) * N; i++)
+                aCrt[i] = ThreadLocalRandom.current().nextLong(0, context.primes[primeIdx]);
 
         if (debug) {
-            long[][] aCrtCpy = new long[context.primes.length][context.slots * 2];
-            for (int primeIdx = 0; primeIdx < context.primes.length; primeIdx++)
-                for (int i = 0; i < context.slots * 2; i++)
-                    aCrtCpy[primeIdx][i] = aCrt[primeIdx][i];
+            long[] aCrtCpy = aCrt.clone();
 
             Maths.nttInverse_inplace(context, aCrtCpy, context.primes.length - 1);
 
@@ -90,7 +110,8 @@ public class KeyGenerator {
             System.out.println("\npubE as polynomial:");
         }
         Polynomial e = ternaryDist(context, 0.5);
-        Polynomial b = e.sub(a.mult(secretKey.getS()));
+        Polynomial b = new Polynomial(e);
+        b.multiplySub(a, secretKey.getS());
         if (debug) {
             System.out.println("pubE:");
             e.debugPrint();
@@ -104,88 +125,101 @@ public class KeyGenerator {
         publicKeys = new PublicKeys(b, a);
     }
 
+    // the relinearization key is kept in NTT form over the regular and temp primes,
+    // so that relinearization multiplies by it pointwise
     private void genRelinearizationKey() {
+        Polynomial s = secretKey.getS();
+        long[] sSquared = s.mult(s).toArray();
+
+        long[][] key = genSwitchingKey(sSquared);
+
+        if (debug) {
+            System.out.println("RelinKeyB:");
+            System.out.println(Arrays.toString(key[0]) + '\n');
+            System.out.println("RelinKeyA:");
+            System.out.println(Arrays.toString(key[1]) + '\n');
+        }
+
+        publicKeys.setRelinKeys(key[0], key[1]);
+    }
+
+    // the key switching key of the automorphism X -> X^galoisElt, from the
+    // automorphism of s to s. The automorphism of s in NTT form is a permutation
+    private void genGaloisKey(int galoisElt) {
+        if (publicKeys.hasGaloisKeys(galoisElt))
+            return;
+
         int N = context.slots * 2;
 
-        long[][] a = new long[context.primes.length + context.tempPrimes.length][N];
+        long[] sGalois = new long[context.primes.length * N];
+        Maths.permuteLimbs(sNtt, sGalois, Maths.galoisPermutation(N, galoisElt), context.primes.length);
 
-        // uniform distribution
-        for (int i = 0; i < N; i++) {
-            for (int primeIdx = 0; primeIdx < context.primes.length; primeIdx++)
-                a[primeIdx][i] = ThreadLocalRandom.current().nextLong(0, context.primes[primeIdx]);
+        long[][] key = genSwitchingKey(sGalois);
+        publicKeys.setGaloisKeys(galoisElt, key[0], key[1]);
+    }
 
-            for (int tempPrimeIdx = 0; tempPrimeIdx < context.tempPrimes.length; tempPrimeIdx++)
-                a[context.primes.length + tempPrimeIdx][i] = ThreadLocalRandom.current().nextLong(0,
-                        context.tempPrimes[tempPrimeIdx]);
-        }
+    // { b, a } of the key switching key from newKey, in NTT form over the regular
+    // primes, to s: a uniform and b = -a*s + e + P*newKey, where P is the product of
+    // the temp primes, in NTT form over the regular and temp primes
+    private long[][] genSwitchingKey(long[] newKey) {
+        int N = context.slots * 2;
 
-        Polynomial s = secretKey.getS();
-        long[][] sSquaredRns = Maths.nttInverse(context, s.mult(s).getCrt(),
-                context.primes.length - 1);
+        int tempOffset = context.primes.length * N;
 
-        if (debug) {
-            System.out.println("s^2 RNS:");
-            System.out.println(Arrays.deepToString(sSquaredRns) + '\n');
-        }
+        long[] a = new long[(context.primes.length + context.tempPrimes.length) * N];
 
+        // uniform distribution, which stays uniform in the NTT domain
         for (int primeIdx = 0; primeIdx < context.primes.length; primeIdx++)
-            for (int coeffIdx = 0; coeffIdx < N; coeffIdx++)
-                sSquaredRns[primeIdx][coeffIdx] = Maths.modMult(sSquaredRns[primeIdx][coeffIdx],
-                        context.tempPrimesProdsMod[primeIdx], context.primes[primeIdx]);
+            for (int i = primeIdx * N; i < (primeIdx + 1) * N; i++)
+                a[i] = ThreadLocalRandom.current().nextLong(0, context.primes[primeIdx]);
 
-        if (debug) {
-            System.out.println("P*s^2 RNS (where P is prod of temp primes):");
-            System.out.println(Arrays.deepToString(sSquaredRns) + '\n');
+        for (int tempPrimeIdx = 0; tempPrimeIdx < context.tempPrimes.length; tempPrimeIdx++)
+            for (int i = tempOffset + tempPrimeIdx * N; i < tempOffset + (tempPrimeIdx + 1) * N; i++)
+                a[i] = ThreadLocalRandom.current().nextLong(0, context.tempPrimes[tempPrimeIdx]);
+
+        if (sNtt == null) {
+            sNtt = Maths.rnsWithTempPrimes(context, sCoeffs);
+            Maths.ntt_inplace(context, sNtt, context.primes.length - 1);
+            Maths.nttTempPrimes_inplace(context, sNtt);
         }
 
         long[] e = Maths.ternaryDist(N, 0.5);
 
         if (debug) {
-            System.out.println("RelinKeyE:");
+            System.out.println("SwitchingKeyE:");
             System.out.println(Arrays.toString(e) + '\n');
         }
 
-        long[][] minusA = new long[context.primes.length + context.tempPrimes.length][N];
-        for (int i = 0; i < a.length; i++)
-            for (int j = 0; j < a[0].length; j++)
-                minusA[i][j] = -a[i][j];
-
-        if (debug) {
-            System.out.println("-a:");
-            System.out.println(Arrays.deepToString(minusA) + '\n');
-        }
+        long[] eNtt = Maths.rnsWithTempPrimes(context, e);
+        Maths.ntt_inplace(context, eNtt, context.primes.length - 1);
+        Maths.nttTempPrimes_inplace(context, eNtt);
 
-        long[][] b = new long[context.primes.length + context.tempPrimes.length][N];
+        long[] b = new long[a.length];
 
+        // b = -a*s + e + P*newKey modulo the regular primes
         for (int primeIdx = 0; primeIdx < context.primes.length; primeIdx++) {
-            b[primeIdx] = Maths.multPolynominalsMod(minusA[primeIdx], sCoeffs, context.primes[primeIdx]);
-
-            if (debug) {
-                System.out.println("-a^s mod " + context.primes[primeIdx] + ":");
-                System.out.println(Arrays.toString(b[primeIdx]) + '\n');
-            }
-
-            for (int i = 0; i < e.length; i++) {
-                b[primeIdx][i] = Maths.mod(b[primeIdx][i] + e[i], context.primes[primeIdx]);
-                b[primeIdx][i] = Maths.mod(b[primeIdx][i] + sSquaredRns[primeIdx][i], context.primes[primeIdx]);
+            long prime = context.primes[primeIdx];
+            long mInv = context.primesMontInvs[primeIdx];
+            long r2 = context.primesMontR2s[primeIdx];
+
+            for (int i = primeIdx * N; i < (primeIdx + 1) * N; i++) {
+                long aTimesS = Maths.modMult(a[i], sNtt[i], prime, mInv, r2);
+                long pTimesNewKey = Maths.modMult(newKey[i], context.tempPrimesProdsMod[primeIdx], prime, mInv, r2);
+                b[i] = Maths.modAdd(Maths.modSub(eNtt[i], aTimesS, prime), pTimesNewKey, prime);
             }
         }
 
+        // b = -a*s + e modulo the temp primes
         for (int tempPrimeIdx = 0; tempPrimeIdx < context.tempPrimes.length; tempPrimeIdx++) {
-            b[context.primes.length + tempPrimeIdx] = Maths.multPolynominalsMod(
-                    minusA[context.primes.length + tempPrimeIdx], sCoeffs, context.tempPrimes[tempPrimeIdx]);
-            for (int i = 0; i < e.length; i++)
-                b[context.primes.length + tempPrimeIdx][i] = Maths
-                        .mod(b[context.primes.length + tempPrimeIdx][i] + e[i], context.tempPrimes[tempPrimeIdx]);
-        }
+            long tempPrime = context.tempPrimes[tempPrimeIdx];
 
-        if (debug) {
-            System.out.println("RelinKeyB:");
-            System.out.println(Arrays.deepToString(b) + '\n');
-            System.out.println("RelinKeyA:");
-            System.out.println(Arrays.deepToString(a) + '\n');
+            for (int i = tempOffset + tempPrimeIdx * N; i < tempOffset + (tempPrimeIdx + 1) * N; i++) {
+                long aTimesS = Maths.modMult(a[i], sNtt[i], tempPrime, context.tempPrimesMontInvs[tempPrimeIdx],
+                        context.tempPrimesMontR2s[tempPrimeIdx]);
+                b[i] = Maths.modSub(eNtt[i], aTimesS, tempPrime);
+            }
         }
 
-        publicKeys.setRelinKeys(b, a);
+        return new long[][] { b, a };
     }
 }
@@ -2,121 +2,200 @@ package ckks;
 
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
+// the multi-limb kernels take the limbs of a polynomial one after the other in a
+// single array, i.e. the limb of the i'th prime is in [i * N, (i + 1) * N). Where
+// there are temp primes' limbs they are the last ones
 public class Maths {
    final static boolean debug = false;
 
-   public static long[][] ntt(Context context, long[][] coeffs, int level) {
-      long[][] res = new long[coeffs.length][coeffs[0].length];
-      for (int i = 0; i < coeffs.length; i++)
-         for (int j = 0; j < coeffs[0].length; j++)
-            res[i][j] = coeffs[i][j];
+   public static long[] ntt(Context context, long[] coeffs, int level) {
+      long[] res = coeffs.clone();
 
       ntt_inplace(context, res, level);
       return res;
    }
 
-   public static void ntt_inplace(Context context, long[][] coeffs, int level) {
-      // TODO: change this to do ntt only on used levels
-
+   public static void ntt_inplace(Context context, long[] coeffs, int level) {
       if (debug) {
          System.out.println("Maths.ntt_inplace:");
          System.out.println("coeffs:");
-         System.out.println(Arrays.deepToString(coeffs));
+         System.out.println(Arrays.toString(coeffs));
       }
 
       int N = context.slots * 2;
 
-      long variable, res;
-      long[] primeCoeffs = new long[N];
-
-      // TODO: use FFT
-      for (int primeIdx = 0; primeIdx <= level; primeIdx++) {
-         for (int coeffIdx = 0; coeffIdx < N; coeffIdx++)
-            primeCoeffs[coeffIdx] = coeffs[primeIdx][coeffIdx];
+      if (Parallel.enabled(context, (level + 1) * N)) {
+         Parallel.forEachWholeLimb(context, level + 1, N,
+               (primeIdx, from, to) -> nttPrime_inplace(context, coeffs, primeIdx));
+      } else {
+         for (int primeIdx = 0; primeIdx <= level; primeIdx++)
+            nttPrime_inplace(context, coeffs, primeIdx);
+      }
 
-         for (int rootIdx = 0; rootIdx < N; rootIdx++) {
-            variable = context.primesRootsOfUnity[primeIdx][rootIdx];
-            res = primeCoeffs[0];
+      if (debug) {
+         System.out.println("ntt:");
+         System.out.println(Arrays.toString(coeffs));
+         System.out.println();
+      }
+   }
 
-            for (int exp = 1; exp < primeCoeffs.length; exp++) {
-               res += modMult(variable, primeCoeffs[exp], context.primes[primeIdx]);
-               res = mod(res, context.primes[primeIdx]);
+   private static void nttPrime_inplace(Context context, long[] coeffs, int primeIdx) {
+      nttPrime_inplace(coeffs, primeIdx * context.slots * 2, context.primes[primeIdx],
+            context.primesNttTwiddles[primeIdx], context.primesNttTwiddlesShoup[primeIdx]);
+   }
 
-               if (exp < primeCoeffs.length - 1)
-                  variable = modMult(variable, context.primesRootsOfUnity[primeIdx][rootIdx], context.primes[primeIdx]);
+   // negacyclic Cooley-Tukey NTT modulo a single prime, of the N = twiddles.length
+   // coefficients starting at offset. coeffs are given in natural order and the
+   // evaluations are returned in bit-reversed order, i.e. in [j] the evaluation at
+   // psi^(2 * brv(j) + 1). see:
+   // https://eprint.iacr.org/2016/504.pdf (Algorithm 1)
+   public static void nttPrime_inplace(long[] coeffs, int offset, long m, long[] twiddles, long[] twiddlesShoup) {
+      int N = twiddles.length;
+
+      long u, v, w, wShoup;
+      int t = N;
+      for (int groups = 1; groups < N; groups <<= 1) {
+         t >>= 1;
+         for (int i = 0; i < groups; i++) {
+            int j1 = offset + 2 * i * t;
+            w = twiddles[groups + i];
+            wShoup = twiddlesShoup[groups + i];
+            for (int j = j1; j < j1 + t; j++) {
+               u = coeffs[j];
+               v = shoupMult(coeffs[j + t], w, wShoup, m);
+               coeffs[j] = modAdd(u, v, m);
+               coeffs[j + t] = modSub(u, v, m);
             }
-
-            coeffs[primeIdx][rootIdx] = res;
          }
       }
+   }
 
-      if (debug) {
-         System.out.println("ntt:");
-         System.out.println(Arrays.deepToString(coeffs));
-         System.out.println();
+   // NTT of the temp primes' limbs, which are always the last ones, after the limbs
+   // of the regular primes up to the level (or of all of them, in the keys)
+   public static void nttTempPrimes_inplace(Context context, long[] coeffs) {
+      nttTempPrimes_inplace(context, coeffs, coeffs.length - context.tempPrimes.length * context.slots * 2);
+   }
+
+   // same, with the temp primes' limbs starting at tempOffset
+   public static void nttTempPrimes_inplace(Context context, long[] coeffs, int tempOffset) {
+      int N = context.slots * 2;
+
+      if (Parallel.enabled(context, context.tempPrimes.length * N)) {
+         Parallel.forEachWholeLimb(context, context.tempPrimes.length, N,
+               (tempPrimeIdx, from, to) -> nttTempPrime_inplace(context, coeffs, tempOffset, tempPrimeIdx));
+      } else {
+         for (int tempPrimeIdx = 0; tempPrimeIdx < context.tempPrimes.length; tempPrimeIdx++)
+            nttTempPrime_inplace(context, coeffs, tempOffset, tempPrimeIdx);
+      }
+   }
+
+   private static void nttTempPrime_inplace(Context context, long[] coeffs, int tempOffset, int tempPrimeIdx) {
+      nttPrime_inplace(coeffs, tempOffset + tempPrimeIdx * context.slots * 2, context.tempPrimes[tempPrimeIdx],
+            context.tempPrimesNttTwiddles[tempPrimeIdx], context.tempPrimesNttTwiddlesShoup[tempPrimeIdx]);
+   }
+
+   public static void nttInverseTempPrimes_inplace(Context context, long[] ntt) {
+      nttInverseTempPrimes_inplace(context, ntt, ntt.length - context.tempPrimes.length * context.slots * 2);
+   }
+
+   public static void nttInverseTempPrimes_inplace(Context context, long[] ntt, int tempOffset) {
+      int N = context.slots * 2;
+
+      if (Parallel.enabled(context, context.tempPrimes.length * N)) {
+         Parallel.forEachWholeLimb(context, context.tempPrimes.length, N,
+               (tempPrimeIdx, from, to) -> nttInverseTempPrime_inplace(context, ntt, tempOffset, tempPrimeIdx));
+      } else {
+         for (int tempPrimeIdx = 0; tempPrimeIdx < context.tempPrimes.length; tempPrimeIdx++)
+            nttInverseTempPrime_inplace(context, ntt, tempOffset, tempPrimeIdx);
       }
    }
 
-   public static long[][] nttInverse(Context context, long[][] ntt, int level) {
-      long[][] res = new long[ntt.length][ntt[0].length];
-      for (int i = 0; i < ntt.length; i++)
-         for (int j = 0; j < ntt[0].length; j++)
-            res[i][j] = ntt[i][j];
+   private static void nttInverseTempPrime_inplace(Context context, long[] ntt, int tempOffset, int tempPrimeIdx) {
+      nttInversePrime_inplace(ntt, tempOffset + tempPrimeIdx * context.slots * 2, context.tempPrimes[tempPrimeIdx],
+            context.tempPrimesNttInvTwiddles[tempPrimeIdx], context.tempPrimesNttInvTwiddlesShoup[tempPrimeIdx],
+            context.tempPrimesNInv[tempPrimeIdx], context.tempPrimesNInvShoup[tempPrimeIdx]);
+   }
+
+   public static long[] nttInverse(Context context, long[] ntt, int level) {
+      long[] res = ntt.clone();
 
       nttInverse_inplace(context, res, level);
       return res;
    }
 
-   public static void nttInverse_inplace(Context context, long[][] ntt, int level) {
+   public static void nttInverse_inplace(Context context, long[] ntt, int level) {
       if (debug) {
          System.out.println("Maths.nttInverse_inplace");
          System.out.println("ntt:");
-         System.out.println(Arrays.deepToString(ntt));
+         System.out.println(Arrays.toString(ntt));
       }
 
       int N = context.slots * 2;
 
-      // based on code from https://math.nist.gov/javanumerics/jama/
+      if (Parallel.enabled(context, (level + 1) * N)) {
+         Parallel.forEachWholeLimb(context, level + 1, N,
+               (primeIdx, from, to) -> nttInversePrime_inplace(context, ntt, primeIdx));
+         return;
+      }
+
       for (int primeIdx = 0; primeIdx <= level; primeIdx++) {
-         // Solve L*Y = B
-         for (int k = 0; k < N; k++) {
-            for (int i = k + 1; i < N; i++) {
-               ntt[primeIdx][i] -= modMult(ntt[primeIdx][k], context.primesVandermondeLUs[primeIdx][i][k],
-                     context.primes[primeIdx]);
-               ntt[primeIdx][i] = mod(ntt[primeIdx][i], context.primes[primeIdx]);
-            }
-         }
+         nttInversePrime_inplace(context, ntt, primeIdx);
 
          if (debug) {
-            System.out.println("Coeffs modulo " + context.primes[primeIdx] + " after solving L*Y=B:");
-            System.out.println(Arrays.toString(ntt[primeIdx]));
+            System.out.println("Coeffs modulo " + context.primes[primeIdx] + ":");
+            System.out.println(Arrays.toString(Arrays.copyOfRange(ntt, primeIdx * N, (primeIdx + 1) * N)));
          }
+      }
 
-         // Solve U*X = Y;
-         for (int k = N - 1; k >= 0; k--) {
-            ntt[primeIdx][k] = modDiv(ntt[primeIdx][k], context.primesVandermondeLUs[primeIdx][k][k],
-                  context.primes[primeIdx]);
+      if (debug) {
+         System.out.println();
+      }
+   }
 
-            for (int i = 0; i < k; i++) {
-               ntt[primeIdx][i] -= modMult(ntt[primeIdx][k], context.primesVandermondeLUs[primeIdx][i][k],
-                     context.primes[primeIdx]);
-               ntt[primeIdx][i] = mod(ntt[primeIdx][i], context.primes[primeIdx]);
-            }
-         }
+   private static void nttInversePrime_inplace(Context context, long[] ntt, int primeIdx) {
+      nttInversePrime_inplace(ntt, primeIdx * context.slots * 2, context.primes[primeIdx],
+            context.primesNttInvTwiddles[primeIdx], context.primesNttInvTwiddlesShoup[primeIdx],
+            context.primesNInv[primeIdx], context.primesNInvShoup[primeIdx]);
+   }
 
-         if (debug) {
-            System.out.println("Coeffs modulo " + context.primes[primeIdx] + " after solving U*X = Y:");
-            System.out.println(Arrays.toString(ntt[primeIdx]));
+   // negacyclic Gentleman-Sande inverse NTT modulo a single prime, of the N =
+   // invTwiddles.length evaluations starting at offset. Takes evaluations in
+   // bit-reversed order (as produced by nttPrime_inplace) and returns the
+   // coefficients in natural order. see:
+   // https://eprint.iacr.org/2016/504.pdf (Algorithm 2)
+   public static void nttInversePrime_inplace(long[] ntt, int offset, long m, long[] invTwiddles,
+         long[] invTwiddlesShoup, long nInv, long nInvShoup) {
+      int N = invTwiddles.length;
+
+      long u, v, w, wShoup;
+      int t = 1;
+      for (int groups = N >> 1; groups >= 1; groups >>= 1) {
+         for (int i = 0; i < groups; i++) {
+            int j1 = offset + 2 * i * t;
+            w = invTwiddles[groups + i];
+            wShoup = invTwiddlesShoup[groups + i];
+            for (int j = j1; j < j1 + t; j++) {
+               u = ntt[j];
+               v = ntt[j + t];
+               ntt[j] = modAdd(u, v, m);
+               ntt[j + t] = shoupMult(modSub(u, v, m), w, wShoup, m);
+            }
          }
+         t <<= 1;
       }
 
-      if (debug) {
-         System.out.println();
-      }
+      for (int j = offset; j < offset + N; j++)
+         ntt[j] = shoupMult(ntt[j], nInv, nInvShoup, m);
    }
 
-   public static long[][] rns(Context context, long[] coeffs) {
+   public static long[] rns(Context context, long[] coeffs) {
+      return rns(context, coeffs, context.primes.length - 1);
+   }
+
+   // the limbs of the primes up to level only
+   public static long[] rns(Context context, long[] coeffs, int level) {
       if (debug) {
          System.out.println("Maths.rns");
          System.out.println("coeffs:");
@@ -125,55 +204,73 @@ public class Maths {
 
       int N = context.slots * 2;
 
-      long[][] res = new long[context.primes.length][N];
+      long[] res = new long[(level + 1) * N];
 
-      for (int primeIdx = 0; primeIdx < context.primes.length; primeIdx++)
+      for (int primeIdx = 0; primeIdx <= level; primeIdx++)
          for (int coeffIdx = 0; coeffIdx < N; coeffIdx++)
-            res[primeIdx][coeffIdx] = mod(coeffs[coeffIdx], context.primes[primeIdx]);
+            res[primeIdx * N + coeffIdx] = mod(coeffs[coeffIdx], context.primes[primeIdx]);
 
       if (debug) {
          System.out.println("rns coeffs:");
-         System.out.println(Arrays.deepToString(res));
+         System.out.println(Arrays.toString(res));
          System.out.println();
       }
 
       return res;
    }
 
-   public static double[] rnsInverse(Context context, long[][] coeffs, int level) {
+   // same as rns, with the temp primes' limbs following the regular primes' limbs
+   public static long[] rnsWithTempPrimes(Context context, long[] coeffs) {
+      int N = context.slots * 2;
+
+      long[] res = Arrays.copyOf(rns(context, coeffs), (context.primes.length + context.tempPrimes.length) * N);
+
+      for (int tempPrimeIdx = 0; tempPrimeIdx < context.tempPrimes.length; tempPrimeIdx++) {
+         int offset = (context.primes.length + tempPrimeIdx) * N;
+         for (int coeffIdx = 0; coeffIdx < N; coeffIdx++)
+            res[offset + coeffIdx] = mod(coeffs[coeffIdx], context.tempPrimes[tempPrimeIdx]);
+      }
+
+      return res;
+   }
+
+   // centered CRT reconstruction of every coefficient, as a double. The
+   // coefficients are reconstructed in mixed radix form (see garnerDigits), which
+   // needs no big integers, and only then evaluated in floating point
+   public static double[] rnsInverse(Context context, long[] coeffs, int level) {
       if (debug) {
          System.out.println("Maths.rnsInverse");
          System.out.println("rns coeefs:");
-         System.out.println(Arrays.deepToString(coeffs));
+         System.out.println(Arrays.toString(coeffs));
       }
 
-      context.validateLevelDataExists(level);
-      LevelData levelData = context.levelsData[level];
-
       int N = context.slots * 2;
 
       double[] res = new double[N];
+      long[] digits = new long[level + 1];
 
       for (int i = 0; i < N; i++) {
-         BigInteger coeff = BigInteger.valueOf(0);
-
-         // TODO: need to calculate those for every level
-         for (int primeIdx = 0; primeIdx <= level; primeIdx++)
-            coeff = coeff.add(levelData.otherPrimesProds[primeIdx]
-                  .multiply(
-                        levelData.otherPrimesProdsInvs[primeIdx].multiply(BigInteger.valueOf(coeffs[primeIdx][i]))));
-
-         coeff = coeff.mod(levelData.primesProd);
-         if (coeff.compareTo(levelData.halfPrimesProd) == 1) {
-            if (debug)
-               System.out.println(
-                     "coeff #" + i + " (" + coeff.toString() + ") is bigger than "
-                           + levelData.halfPrimesProd.toString());
-
-            coeff = coeff.subtract(levelData.primesProd);
+         garnerDigits(context, coeffs, level, i, digits);
+
+         // the coefficient is bigger than half the modulus Q iff its digits are
+         // lexicographically bigger than those of (Q - 1) / 2, which are (p_j - 1) / 2
+         int cmp = 0;
+         for (int primeIdx = level; primeIdx >= 0 && cmp == 0; primeIdx--)
+            cmp = Long.compare(digits[primeIdx], (context.primes[primeIdx] - 1) / 2);
+
+         if (cmp > 0) {
+            // the digits of Q - 1 - coeff are p_j - 1 - v_j, and coeff - Q is the negation
+            // of (Q - 1 - coeff) + 1
+            double value = 0;
+            for (int primeIdx = level; primeIdx >= 0; primeIdx--)
+               value = value * context.primes[primeIdx] + (context.primes[primeIdx] - 1 - digits[primeIdx]);
+            res[i] = -(value + 1);
+         } else {
+            double value = 0;
+            for (int primeIdx = level; primeIdx >= 0; primeIdx--)
+               value = value * context.primes[primeIdx] + digits[primeIdx];
+            res[i] = value;
          }
-
-         res[i] = coeff.doubleValue();
       }
 
       if (debug) {
@@ -185,30 +282,27 @@ public class Maths {
       return res;
    }
 
-   public static BigInteger[] experimental_rnsInverse(Context context, long[][] coeffs, int level) {
+   // exact CRT reconstruction of every coefficient, in [0, Q) where Q is the
+   // product of the primes up to level
+   public static BigInteger[] experimental_rnsInverse(Context context, long[] coeffs, int level) {
       if (debug) {
          System.out.println("Maths.experimental_rnsInverse");
          System.out.println("rns coeefs:");
-         System.out.println(Arrays.deepToString(coeffs));
+         System.out.println(Arrays.toString(coeffs));
       }
 
-      context.validateLevelDataExists(level);
-      LevelData levelData = context.levelsData[level];
-
       int N = context.slots * 2;
 
       BigInteger[] res = new BigInteger[N];
+      long[] digits = new long[level + 1];
 
       for (int i = 0; i < N; i++) {
-         BigInteger coeff = BigInteger.valueOf(0);
-
-         // TODO: need to calculate those for every level
-         for (int primeIdx = 0; primeIdx <= level; primeIdx++)
-            coeff = coeff.add(levelData.otherPrimesProds[primeIdx]
-                  .multiply(
-                        levelData.otherPrimesProdsInvs[primeIdx].multiply(BigInteger.valueOf(coeffs[primeIdx][i]))));
+         garnerDigits(context, coeffs, level, i, digits);
 
-         coeff = coeff.mod(levelData.primesProd);
+         BigInteger coeff = BigInteger.valueOf(digits[level]);
+         for (int primeIdx = level - 1; primeIdx >= 0; primeIdx--)
+            coeff = coeff.multiply(BigInteger.valueOf(context.primes[primeIdx]))
+                  .add(BigInteger.valueOf(digits[primeIdx]));
 
          res[i] = coeff;
       }
@@ -222,88 +316,266 @@ public class Maths {
       return res;
    }
 
-   public static long[][] modUp(Context context, long[][] d2Coeffs, int level) {
+   // Garner's algorithm. Writes to digits the mixed radix representation of the
+   // coefficient at coeffIdx, i.e. v_0, ..., v_level with v_j in [0, p_j) such that
+   // the coefficient is v_0 + v_1 * p_0 + v_2 * p_0 * p_1 + ... see:
+   // https://en.wikipedia.org/wiki/Mixed_radix#Application
+   private static void garnerDigits(Context context, long[] coeffs, int level, int coeffIdx, long[] digits) {
+      int N = context.slots * 2;
+
+      digits[0] = coeffs[coeffIdx];
+
+      for (int primeIdx = 1; primeIdx <= level; primeIdx++) {
+         long prime = context.primes[primeIdx];
+
+         // the value of the previous digits modulo the current prime, with the same
+         // lazy reduction as in modUp
+         long hi = 0, lo = 0;
+         for (int j = 0; j < primeIdx; j++) {
+            long factor = context.primesPrefixProdsMods[primeIdx][j];
+            long prodLo = digits[j] * factor;
+            lo += prodLo;
+            hi += Math.multiplyHigh(digits[j], factor) + (Long.compareUnsigned(lo, prodLo) < 0 ? 1 : 0);
+            hi -= Long.compareUnsigned(hi, prime) >= 0 ? prime : 0;
+         }
+
+         long prefix = Maths.modReduce128(hi, lo, prime, context.primesMontInvs[primeIdx],
+               context.primesMontR2s[primeIdx]);
+
+         digits[primeIdx] = Maths.shoupMult(Maths.modSub(coeffs[primeIdx * N + coeffIdx], prefix, prime),
+               context.primesPrefixProdsInvs[primeIdx], context.primesPrefixProdsInvsShoup[primeIdx], prime);
+      }
+   }
+
+   // the result has the limbs of the primes up to level followed by those of the
+   // temp primes
+   public static long[] modUp(Context context, long[] d2Coeffs, int level) {
+      int N = context.slots * 2;
+
+      long[] newCoeffs = new long[(level + 1 + context.tempPrimes.length) * N];
+      System.arraycopy(d2Coeffs, 0, newCoeffs, 0, (level + 1) * N);
+
+      modUp(context, d2Coeffs, level, newCoeffs, new long[level + 1]);
+      return newCoeffs;
+   }
+
+   // same as modUp, but only writes the temp primes' limbs, to res from
+   // (level + 1) * N on. scaled is scratch space for level + 1 values
+   public static void modUp(Context context, long[] d2Coeffs, int level, long[] res, long[] scaled) {
       if (debug) {
          System.out.println("Maths.modUp");
          System.out.println("d2Coeffs:");
-         System.out.println(Arrays.deepToString(d2Coeffs));
+         System.out.println(Arrays.toString(d2Coeffs));
       }
 
       context.validateLevelDataExists(level);
       LevelData levelData = context.levelsData[level];
 
-      long[][] newCoeffs = new long[context.primes.length + context.tempPrimes.length][context.slots * 2];
+      int N = context.slots * 2;
 
-      for (int i = 0; i < context.primes.length; i++)
-         for (int j = 0; j < context.slots * 2; j++)
-            newCoeffs[i][j] = d2Coeffs[i][j];
+      if (Parallel.enabled(context, (level + 1 + context.tempPrimes.length) * N))
+         Parallel.forEachBlock(context, N,
+               (from, to) -> modUp(context, levelData, d2Coeffs, level, res, new long[level + 1], from, to));
+      else
+         modUp(context, levelData, d2Coeffs, level, res, scaled, 0, N);
 
-      // fast basis conversion
-      for (int tempPrimeIdx = 0; tempPrimeIdx < context.tempPrimes.length; tempPrimeIdx++) {
-         for (int coeffIdx = 0; coeffIdx < context.slots * 2; coeffIdx++) {
-            long value = 0, tmp = 0;
+      if (debug) {
+         System.out.println("res:");
+         System.out.println(Arrays.toString(res));
+         System.out.println();
+      }
+   }
+
+   // the coefficients [from, to) of modUp
+   private static void modUp(Context context, LevelData levelData, long[] d2Coeffs, int level, long[] res,
+         long[] scaled, int from, int to) {
+      int N = context.slots * 2;
+      int tempOffset = (level + 1) * N;
+
+      // fast basis conversion. in [i] of scaled the coefficient modulo the i'th prime
+      // times the inverse of the product of the other primes in the level, computed
+      // once per coefficient and shared by all the temp primes. every output
+      // coefficient is then a dot product over the limbs, so the products are
+      // accumulated as unreduced 128-bit values (hi, lo) and reduced only once
+      for (int coeffIdx = from; coeffIdx < to; coeffIdx++) {
+         for (int primeIdx = 0; primeIdx <= level; primeIdx++)
+            scaled[primeIdx] = Maths.shoupMult(d2Coeffs[primeIdx * N + coeffIdx],
+                  levelData.otherPrimesProdsInvsMod[primeIdx], levelData.otherPrimesProdsInvsModShoup[primeIdx],
+                  context.primes[primeIdx]);
+
+         for (int tempPrimeIdx = 0; tempPrimeIdx < context.tempPrimes.length; tempPrimeIdx++) {
+            long tempPrime = context.tempPrimes[tempPrimeIdx];
+            long hi = 0, lo = 0;
             for (int primeIdx = 0; primeIdx <= level; primeIdx++) {
-               tmp = Maths.modMult(d2Coeffs[primeIdx][coeffIdx], levelData.otherPrimesProdsInvsMod[primeIdx],
-                     context.primes[primeIdx]);
-               tmp = Maths.modMult(tmp, levelData.otherPrimesProdsMods[primeIdx][tempPrimeIdx],
-                     context.tempPrimes[tempPrimeIdx]);
-               value = Maths.mod(value + tmp, context.tempPrimes[tempPrimeIdx]);
+               long factor = levelData.otherPrimesProdsMods[primeIdx][tempPrimeIdx];
+               long prodLo = scaled[primeIdx] * factor;
+               lo += prodLo;
+               hi += Math.multiplyHigh(scaled[primeIdx], factor) + (Long.compareUnsigned(lo, prodLo) < 0 ? 1 : 0);
+               // keep hi below the modulus (hi * 2^64 is a multiple of it anyway) so that
+               // the sum can't overflow and can be Montgomery reduced at the end
+               hi -= Long.compareUnsigned(hi, tempPrime) >= 0 ? tempPrime : 0;
             }
 
-            newCoeffs[context.primes.length + tempPrimeIdx][coeffIdx] = value;
+            res[tempOffset + tempPrimeIdx * N + coeffIdx] = Maths.modReduce128(hi, lo, tempPrime,
+                  context.tempPrimesMontInvs[tempPrimeIdx], context.tempPrimesMontR2s[tempPrimeIdx]);
          }
       }
+   }
+
+   public static long[] modDown(Context context, long[] d2Coeffs, int level) {
+      if (debug) {
+         System.out.println("Maths.modDown");
+         System.out.println("d2Coeffs:");
+         System.out.println(Arrays.toString(d2Coeffs));
+      }
+
+      long[] newCoeffs = new long[(level + 1) * context.slots * 2];
+      convertFromTempPrimes(context, d2Coeffs, (level + 1) * context.slots * 2, level, newCoeffs,
+            new long[context.tempPrimes.length]);
+      subtractAndDivideByTempPrimesProd(context, d2Coeffs, newCoeffs, level);
 
       if (debug) {
          System.out.println("newCoeffs:");
-         System.out.println(Arrays.deepToString(newCoeffs));
+         System.out.println(Arrays.toString(newCoeffs));
          System.out.println();
       }
 
       return newCoeffs;
    }
 
-   public static long[][] modDown(Context context, long[][] d2Coeffs, int level) {
+   // same as modDown, but both the input and the output are in NTT form. Only the
+   // temp primes' limbs go through the inverse NTT, and the result of the basis
+   // conversion is moved to the NTT domain, where the rest is pointwise
+   public static long[] modDownNtt(Context context, long[] d2Ntt, int level) {
+      long[] newNtt = new long[(level + 1) * context.slots * 2];
+      modDownNtt(context, d2Ntt, level, newNtt, new long[context.tempPrimes.length * context.slots * 2],
+            new long[context.tempPrimes.length]);
+      return newNtt;
+   }
+
+   // same as modDownNtt, writing the limbs up to level to res. tempCoeffs and
+   // scaled are scratch space for the temp primes' limbs and for one value per
+   // temp prime
+   public static void modDownNtt(Context context, long[] d2Ntt, int level, long[] res, long[] tempCoeffs,
+         long[] scaled) {
       if (debug) {
-         System.out.println("Maths.modDown");
-         System.out.println("d2Coeffs:");
-         System.out.println(Arrays.deepToString(d2Coeffs));
+         System.out.println("Maths.modDownNtt");
+         System.out.println("d2Ntt:");
+         System.out.println(Arrays.toString(d2Ntt));
       }
 
-      long[][] newCoeffs = new long[context.primes.length][context.slots * 2];
+      int N = context.slots * 2;
 
-      // fast basis conversion
-      for (int primeIdx = 0; primeIdx <= level; primeIdx++) {
-         for (int coeffIdx = 0; coeffIdx < context.slots * 2; coeffIdx++) {
-            long value = 0, tmp = 0;
+      System.arraycopy(d2Ntt, (level + 1) * N, tempCoeffs, 0, context.tempPrimes.length * N);
+      nttInverseTempPrimes_inplace(context, tempCoeffs, 0);
+
+      convertFromTempPrimes(context, tempCoeffs, 0, level, res, scaled);
+      ntt_inplace(context, res, level);
+      subtractAndDivideByTempPrimesProd(context, d2Ntt, res, level);
+
+      if (debug) {
+         System.out.println("res:");
+         System.out.println(Arrays.toString(res));
+         System.out.println();
+      }
+   }
+
+   // fast basis conversion of the temp primes' limbs of coeffs, starting at
+   // tempOffset, to the regular primes up to level. scaled is scratch space for
+   // one value per temp prime
+   private static void convertFromTempPrimes(Context context, long[] coeffs, int tempOffset, int level,
+         long[] res, long[] scaled) {
+      int N = context.slots * 2;
+
+      if (Parallel.enabled(context, (level + 1 + context.tempPrimes.length) * N))
+         Parallel.forEachBlock(context, N, (from, to) -> convertFromTempPrimes(context, coeffs, tempOffset, level,
+               res, new long[context.tempPrimes.length], from, to));
+      else
+         convertFromTempPrimes(context, coeffs, tempOffset, level, res, scaled, 0, N);
+   }
+
+   // the coefficients [from, to) of convertFromTempPrimes
+   private static void convertFromTempPrimes(Context context, long[] coeffs, int tempOffset, int level,
+         long[] res, long[] scaled, int from, int to) {
+      int N = context.slots * 2;
+
+      // in [i] of scaled the coefficient modulo the i'th temp prime times the inverse
+      // of the product of the other temp primes, computed once per coefficient and
+      // shared by all the regular primes. same lazy reduction as in modUp.
+      // scaled values above half their temp prime count as negative, i.e. P is
+      // subtracted once for each of them. The conversion is off by a small multiple
+      // of P, which modDown turns into an error of that many units in every
+      // coefficient. With centered values it averages to 0 instead of half the
+      // number of temp primes, a bias that adds up in the slots near 1
+      for (int coeffIdx = from; coeffIdx < to; coeffIdx++) {
+         int negatives = 0;
+         for (int tempPrimeIdx = 0; tempPrimeIdx < context.tempPrimes.length; tempPrimeIdx++) {
+            long tempPrime = context.tempPrimes[tempPrimeIdx];
+            scaled[tempPrimeIdx] = Maths.shoupMult(coeffs[tempOffset + tempPrimeIdx * N + coeffIdx],
+                  context.otherTempPrimesProdsInvsMod[tempPrimeIdx],
+                  context.otherTempPrimesProdsInvsModShoup[tempPrimeIdx], tempPrime);
+            if (scaled[tempPrimeIdx] > tempPrime >>> 1)
+               negatives++;
+         }
+
+         for (int primeIdx = 0; primeIdx <= level; primeIdx++) {
+            long prime = context.primes[primeIdx];
+            long hi = 0, lo = 0;
             for (int tempPrimeIdx = 0; tempPrimeIdx < context.tempPrimes.length; tempPrimeIdx++) {
-               tmp = Maths.modMult(d2Coeffs[context.primes.length + tempPrimeIdx][coeffIdx],
-                     context.otherTempPrimesProdsInvsMod[tempPrimeIdx], context.tempPrimes[tempPrimeIdx]);
-               tmp = Maths.modMult(tmp, context.otherTempPrimesProdsMods[tempPrimeIdx][primeIdx],
-                     context.primes[primeIdx]);
-               value = Maths.mod(value + tmp, context.primes[primeIdx]);
+               long factor = context.otherTempPrimesProdsMods[tempPrimeIdx][primeIdx];
+               long prodLo = scaled[tempPrimeIdx] * factor;
+               lo += prodLo;
+               hi += Math.multiplyHigh(scaled[tempPrimeIdx], factor) + (Long.compareUnsigned(lo, prodLo) < 0 ? 1 : 0);
+               hi -= Long.compareUnsigned(hi, prime) >= 0 ? prime : 0;
             }
 
-            value = Maths.mod(d2Coeffs[primeIdx][coeffIdx] - value, context.primes[primeIdx]);
-
-            value = Maths.modMult(value, context.tempPrimesProdsInvMod[primeIdx], context.primes[primeIdx]);
+            long value = Maths.modReduce128(hi, lo, prime, context.primesMontInvs[primeIdx],
+                  context.primesMontR2s[primeIdx]);
+            for (int i = 0; i < negatives; i++)
+               value = Maths.modSub(value, context.tempPrimesProdsMod[primeIdx], prime);
 
-            newCoeffs[primeIdx][coeffIdx] = value;
+            res[primeIdx * N + coeffIdx] = value;
          }
       }
+   }
 
-      if (debug) {
-         System.out.println("newCoeffs:");
-         System.out.println(Arrays.deepToString(newCoeffs));
-         System.out.println();
+   // converted = (coeffs - converted) * P^-1 for the regular primes up to level,
+   // where P is the product of the temp primes. Works in both coefficients and NTT
+   // form
+   private static void subtractAndDivideByTempPrimesProd(Context context, long[] coeffs, long[] converted,
+         int level) {
+      int N = context.slots * 2;
+
+      if (Parallel.enabled(context, (level + 1) * N)) {
+         Parallel.forEachLimb(context, level + 1, N, (primeIdx, from, to) -> subtractAndDivideByTempPrimesProd(
+               context, coeffs, converted, primeIdx, primeIdx * N + from, primeIdx * N + to));
+      } else {
+         for (int primeIdx = 0; primeIdx <= level; primeIdx++)
+            subtractAndDivideByTempPrimesProd(context, coeffs, converted, primeIdx, primeIdx * N,
+                  (primeIdx + 1) * N);
       }
+   }
 
-      return newCoeffs;
+   // the elements [from, to) of converted, in the limb of the prime at primeIdx
+   private static void subtractAndDivideByTempPrimesProd(Context context, long[] coeffs, long[] converted,
+         int primeIdx, int from, int to) {
+      long prime = context.primes[primeIdx];
+      for (int i = from; i < to; i++) {
+         long value = Maths.modSub(coeffs[i], converted[i], prime);
+         converted[i] = Maths.shoupMult(value, context.tempPrimesProdsInvMod[primeIdx],
+               context.tempPrimesProdsInvModShoup[primeIdx], prime);
+      }
    }
 
    // the polynomials are in coefficients form. we need to calculate their product
    // mod m but also mod (x^N+1)
    public static long[] multPolynominalsMod(long[] a, long[] b, long m) {
+      return multPolynominalsMod(a, b, m, null);
+   }
+
+   // same, computing blocks of the result's coefficients in parallel on pool
+   // unless it is null or the polynomials are small
+   public static long[] multPolynominalsMod(long[] a, long[] b, long m, ForkJoinPool pool) {
       if (debug) {
          System.out.println("Maths.multPolynominalsMod");
          System.out.println("a= " + Arrays.toString(a));
@@ -313,17 +585,37 @@ public class Maths {
 
       int N = a.length;
 
+      long mInv = montInv(m);
+      long r2 = montR2(m);
+
+      // the Montgomery kernel expects reduced inputs
+      long[] aReduced = new long[N];
+      long[] bReduced = new long[N];
+      for (int i = 0; i < N; i++) {
+         aReduced[i] = mod(a[i], m);
+         bReduced[i] = mod(b[i], m);
+      }
+
       long[] res = new long[N];
 
+      if (pool != null && (long) N * N >= Parallel.THRESHOLD) {
+         Parallel.forEachBlock(pool, N, 64,
+               (from, to) -> multPolynominalsMod(aReduced, bReduced, m, mInv, r2, res, from, to));
+         return res;
+      }
+
       long tmp = 0;
       int idx = 0;
-      for (int i = 0; i < a.length; i++) {
-         for (int j = 0; j < b.length; j++) {
-            idx = (int) Maths.mod(i + j, N);
-            tmp = Maths.modMult(a[i], b[j], m);
-            if (i + j >= N)
-               tmp = -tmp;
-            res[idx] = Maths.mod(res[idx] + tmp, m);
+      for (int i = 0; i < N; i++) {
+         for (int j = 0; j < N; j++) {
+            idx = i + j;
+            tmp = modMult(aReduced[i], bReduced[j], m, mInv, r2);
+            if (idx >= N) {
+               idx -= N;
+               res[idx] = modSub(res[idx], tmp, m);
+            } else {
+               res[idx] = modAdd(res[idx], tmp, m);
+            }
          }
       }
 
@@ -335,6 +627,22 @@ public class Maths {
       return res;
    }
 
+   // the coefficients [from, to) of the product, each as a single negacyclic
+   // convolution sum
+   private static void multPolynominalsMod(long[] a, long[] b, long m, long mInv, long r2, long[] res, int from,
+         int to) {
+      int N = a.length;
+
+      for (int k = from; k < to; k++) {
+         long sum = 0;
+         for (int i = 0; i <= k; i++)
+            sum = modAdd(sum, modMult(a[i], b[k - i], m, mInv, r2), m);
+         for (int i = k + 1; i < N; i++)
+            sum = modSub(sum, modMult(a[i], b[k - i + N], m, mInv, r2), m);
+         res[k] = sum;
+      }
+   }
+
    public static long mod(long a, long m) {
       if (debug) {
          System.out.println("Maths.mod");
@@ -350,6 +658,146 @@ public class Maths {
       return res >= 0 ? res : res + m;
    }
 
+   // x mod m, for an integral x beyond the range of a long too, e.g. a constant
+   // rounded at a squared scale. Exact, as x is its 53-bit significand times a
+   // power of 2
+   public static long mod(double x, long m) {
+      if (Math.abs(x) < 0x1p63)
+         return mod((long) x, m);
+
+      if (!Double.isFinite(x))
+         throw new IllegalArgumentException("Cannot reduce " + x);
+
+      long significand = (Double.doubleToRawLongBits(x) & 0xF_FFFF_FFFF_FFFFL) | 0x10_0000_0000_0000L;
+      long res = modMult(significand, modPow(2, Math.getExponent(x) - 52, m), m);
+
+      return x < 0 ? mod(-res, m) : res;
+   }
+
+   // a and b must be in [0, m)
+   public static long modAdd(long a, long b, long m) {
+      long res = a + b - m;
+      return res < 0 ? res + m : res;
+   }
+
+   // a and b must be in [0, m)
+   public static long modSub(long a, long b, long m) {
+      long res = a - b;
+      return res < 0 ? res + m : res;
+   }
+
+   public static int bitReverse(int x, int bits) {
+      return bits == 0 ? 0 : Integer.reverse(x) >>> (32 - bits);
+   }
+
+   // the Galois element of the automorphism X -> X^(5^steps) of the ring of degree
+   // N, which rotates the slots left by steps, see Encoder.rotationGroup
+   public static int rotationGaloisElement(int N, int steps) {
+      int M = 2 * N;
+
+      // 5 has order N / 2, the number of slots, modulo 2N
+      int exp = Math.floorMod(steps, Math.max(N / 2, 1));
+
+      long res = 1;
+      long base = 5;
+      for (; exp > 0; exp >>= 1) {
+         if ((exp & 1) != 0)
+            res = res * base % M;
+         base = base * base % M;
+      }
+
+      return (int) res;
+   }
+
+   // the Galois element of the automorphism X -> X^-1 = X^(2N - 1), which
+   // conjugates the slots
+   public static int conjugationGaloisElement(int N) {
+      return 2 * N - 1;
+   }
+
+   // the automorphism X -> X^galoisElt of a polynomial in NTT form permutes each
+   // limb, res[i] = ntt[perm[i]]. The NTT leaves the evaluation at
+   // psi^(2 * bitReverse(i) + 1) at index i, and the automorphism evaluates at
+   // psi^((2 * bitReverse(i) + 1) * galoisElt) instead, which is another index
+   public static int[] galoisPermutation(int N, int galoisElt) {
+      int bits = Integer.numberOfTrailingZeros(N);
+      int M = 2 * N;
+
+      int[] perm = new int[N];
+      for (int i = 0; i < N; i++) {
+         long exp = (2L * bitReverse(i, bits) + 1) * galoisElt % M;
+         perm[i] = bitReverse((int) (exp >> 1), bits);
+      }
+
+      return perm;
+   }
+
+   // dest = the automorphism of perm on the limbs [0, limbs) of src, see
+   // galoisPermutation. dest and src must not overlap
+   public static void permuteLimbs(long[] src, long[] dest, int[] perm, int limbs) {
+      int N = perm.length;
+
+      for (int limbIdx = 0; limbIdx < limbs; limbIdx++) {
+         int offset = limbIdx * N;
+         for (int i = 0; i < N; i++)
+            dest[offset + i] = src[offset + perm[i]];
+      }
+   }
+
+   // deterministic Miller-Rabin for positive n below 2^63. The first 12 primes as
+   // bases are enough for every n below 3.3 * 10^24, see:
+   // https://en.wikipedia.org/wiki/Miller%E2%80%93Rabin_primality_test#Testing_against_small_sets_of_bases
+   public static boolean isPrime(long n) {
+      if (n < 2)
+         return false;
+
+      for (long p : MILLER_RABIN_BASES) {
+         if (n == p)
+            return true;
+         if (n % p == 0)
+            return false;
+      }
+
+      long mInv = montInv(n);
+      long r2 = montR2(n);
+
+      int s = Long.numberOfTrailingZeros(n - 1);
+      long d = (n - 1) >>> s;
+
+      for (long base : MILLER_RABIN_BASES) {
+         long x = modPow(base, d, n, mInv, r2);
+         if (x == 1 || x == n - 1)
+            continue;
+
+         boolean composite = true;
+         for (int i = 1; i < s && composite; i++) {
+            x = modMult(x, x, n, mInv, r2);
+            composite = x != n - 1;
+         }
+
+         if (composite)
+            return false;
+      }
+
+      return true;
+   }
+
+   private static final long[] MILLER_RABIN_BASES = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37 };
+
+   // same as modPow with the Montgomery constants of m, for b in [0, m)
+   private static long modPow(long b, long e, long m, long mInv, long r2) {
+      long x = 1;
+      while (e > 0) {
+         if ((e & 1) == 1)
+            x = modMult(x, b, m, mInv, r2);
+
+         b = modMult(b, b, m, mInv, r2);
+         e >>>= 1;
+      }
+
+      return x;
+   }
+
    public static long modInv(long a, long m) {
       if (debug) {
          System.out.println("Maths.modInv with a= " + a + ", m= " + m);
@@ -371,8 +819,9 @@ public class Maths {
       return res;
    }
 
-   // mod multiplication without overflow. see:
-   // https://stackoverflow.com/questions/20971888/modular-multiplication-of-large-numbers-in-c
+   // mod multiplication without overflow. the 128-bit product is reduced with a
+   // single long division, so this should be used only where no precomputed
+   // constants for m are available (setup code etc.)
    public static long modMult(long a, long z, long m) {
       if (debug) {
          System.out.println("Maths.modMult with a= " + a + ", z=" + z + ", m= " + m);
@@ -381,25 +830,128 @@ public class Maths {
       a = mod(a, m);
       z = mod(z, m);
 
-      long res;
-
-      // if multiplying a and z cause overflow multiplyExact will throw
-      try {
-         res = mod(Math.multiplyExact(a, z), m);
-      } catch (ArithmeticException e) {
-         long q = m / a;
-         long r = mod(m, a);
-         res = a * mod(z, q) - modMult(r, (z / q), m);
-         if (res < 0)
-            res += m;
-      }
+      long res = remainder128(Math.multiplyHigh(a, z), a * z, m);
 
       if (debug) {
          System.out.println("Maths.modMult res= " + res + "\n");
       }
 
       return res;
+   }
+
+   // mod multiplication of a and z, both in [0, m), using the Montgomery
+   // constants mInv = m^-1 mod 2^64 and r2 = 2^128 mod m (see montInv and montR2).
+   // no divisions and no overflow
+   public static long modMult(long a, long z, long m, long mInv, long r2) {
+      return montMult(montMult(a, z, m, mInv), r2, m, mInv);
+   }
+
+   // (hi * 2^64 + lo) mod m for the unsigned 128-bit number (hi, lo), where hi is
+   // in [0, m). Used to reduce lazily accumulated sums of products
+   public static long modReduce128(long hi, long lo, long m, long mInv, long r2) {
+      return montMult(montReduce(hi, lo, m, mInv), r2, m, mInv);
+   }
+
+   // a * z * 2^-64 mod m, where a and z are in [0, m)
+   public static long montMult(long a, long z, long m, long mInv) {
+      return montReduce(Math.multiplyHigh(a, z), a * z, m, mInv);
+   }
+
+   // Montgomery reduction of the unsigned 128-bit number (hi, lo), i.e.
+   // (hi * 2^64 + lo) * 2^-64 mod m. hi must be in [0, m). see:
+   // https://en.wikipedia.org/wiki/Montgomery_modular_multiplication#The_REDC_algorithm
+   public static long montReduce(long hi, long lo, long m, long mInv) {
+      // q * m == lo modulo 2^64, so the low words cancel and only the high words
+      // need to be subtracted
+      long q = lo * mInv;
+      long res = hi - unsignedMultiplyHigh(q, m);
+      return res < 0 ? res + m : res;
+   }
+
+   // m^-1 mod 2^64 for an odd m, by Newton's iteration. every iteration doubles
+   // the number of correct low bits, and m itself is correct in the lowest 3 bits
+   public static long montInv(long m) {
+      long inv = m;
+      for (int i = 0; i < 5; i++)
+         inv *= 2 - m * inv;
+      return inv;
+   }
+
+   // 2^128 mod m
+   public static long montR2(long m) {
+      // -m as unsigned is 2^64 - m
+      long r = Long.remainderUnsigned(-m, m);
+      return modMult(r, r, m);
+   }
+
+   // floor(w * 2^64 / m) for w in [0, m). Together with w this is the prepared
+   // form of a constant multiplicand, see shoupMult
+   public static long shoupPrecompute(long w, long m) {
+      return divide128(w, 0, m);
+   }
+
+   // a * w mod m, where wShoup = shoupPrecompute(w, m). a may be any unsigned
+   // 64-bit value, and in particular doesn't have to be reduced modulo m. see:
+   // https://arxiv.org/abs/1205.2926 (Algorithm 2)
+   public static long shoupMult(long a, long w, long wShoup, long m) {
+      long q = unsignedMultiplyHigh(a, wShoup);
+      // the exact value of a * w - q * m is in [0, 2m)
+      long res = a * w - q * m;
+      return Long.compareUnsigned(res, m) >= 0 ? res - m : res;
+   }
+
+   // high 64 bits of the unsigned product of a and b
+   private static long unsignedMultiplyHigh(long a, long b) {
+      return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+   }
+
+   // remainder of the unsigned 128-bit number (hi, lo) divided by m, where hi is
+   // in [0, m)
+   private static long remainder128(long hi, long lo, long m) {
+      if (hi == 0)
+         return Long.remainderUnsigned(lo, m);
+
+      return lo - divide128(hi, lo, m) * m;
+   }
+
+   // quotient of the unsigned 128-bit number (hi, lo) divided by m, where hi is
+   // in [0, m) so that the quotient fits in an unsigned 64-bit value. based on
+   // divlu from Hacker's Delight, 2nd ed. (Figure 9-3)
+   private static long divide128(long hi, long lo, long m) {
+      final long b = 1L << 32;
+
+      // normalize so that the divisor's top bit is set
+      int s = Long.numberOfLeadingZeros(m);
+      long v = m << s;
+      long vn1 = v >>> 32;
+      long vn0 = v & 0xFFFFFFFFL;
+
+      long un32 = (hi << s) | (s == 0 ? 0 : lo >>> (64 - s));
+      long un10 = lo << s;
+      long un1 = un10 >>> 32;
+      long un0 = un10 & 0xFFFFFFFFL;
+
+      long q1 = Long.divideUnsigned(un32, vn1);
+      long rhat = un32 - q1 * vn1;
+      while (q1 >= b || Long.compareUnsigned(q1 * vn0, (rhat << 32) | un1) > 0) {
+         q1--;
+         rhat += vn1;
+         if (rhat >= b)
+            break;
+      }
+
+      long un21 = (un32 << 32) + un1 - q1 * v;
+
+      long q0 = Long.divideUnsigned(un21, vn1);
+      rhat = un21 - q0 * vn1;
+      while (q0 >= b || Long.compareUnsigned(q0 * vn0, (rhat << 32) | un0) > 0) {
+         q0--;
+         rhat += vn1;
+         if (rhat >= b)
+            break;
+      }
 
+      return (q1 << 32) | q0;
    }
 
    public static long modDiv(long a, long z, long m) {
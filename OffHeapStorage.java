@@ -0,0 +1,136 @@
+package ckks;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+// Limbs kept in native memory allocated from a caller-controlled Arena, which
+// takes ciphertexts and keys off the Java heap. Needs the Foreign Function &
+// Memory API (JDK 22, or JDK 21 with --enable-preview); this is the only class
+// that uses it, so it can be left out of the build on older JDKs.
+//
+// Use the copyOf methods to move objects off-heap. The Evaluator, Encryptor and
+// Decryptor work with them as usual, and the polynomials they compute from
+// off-heap ones are allocated from the same arena. So the arena must outlive
+// everything derived from it, and closing it frees it all at once, e.g. a
+// confined arena per request for ciphertexts and plaintexts, and a shared one
+// for the keys.
+public final class OffHeapStorage implements PolynomialStorage {
+    private final Arena arena;
+
+    private final MemorySegment segment;
+
+    private final int length;
+
+    private OffHeapStorage(Arena arena, int length) {
+        this.arena = arena;
+        this.segment = arena.allocate((long) length * Long.BYTES, Long.BYTES);
+        this.length = length;
+    }
+
+    private OffHeapStorage(Arena arena, long[] values) {
+        this(arena, values.length);
+        copyFrom(values, 0, 0, values.length);
+    }
+
+    public static Polynomial copyOf(Polynomial poly, Arena arena) {
+        return new Polynomial(poly, new OffHeapStorage(arena, poly.toArray()));
+    }
+
+    public static Plaintext copyOf(Plaintext src, Arena arena) {
+        if (src.isEmpty())
+            return new Plaintext(src);
+
+        Plaintext res = new Plaintext(src.getM().getContext());
+        res.init(copyOf(src.getM(), arena), src.getScale(), src.getLevel());
+        return res;
+    }
+
+    public static Ciphertext copyOf(Ciphertext src, Arena arena) {
+        if (src.isEmpty())
+            return new Ciphertext(src);
+
+        Ciphertext res;
+        if (src.isLinear()) {
+            res = new Ciphertext(src.getB().getContext());
+            res.init(copyOf(src.getB(), arena), copyOf(src.getA(), arena), src.getLevel(), src.getScale());
+        } else {
+            res = new Ciphertext(src.getD0().getContext());
+            res.afterMult(copyOf(src.getD0(), arena), copyOf(src.getD1(), arena), copyOf(src.getD2(), arena),
+                    src.getScale());
+            res.setLevel(src.getLevel());
+        }
+        return res;
+    }
+
+    public static SecretKey copyOf(SecretKey src, Arena arena) {
+        return new SecretKey(copyOf(src.getS(), arena));
+    }
+
+    // including the relinearization and Galois keys, by far the biggest part
+    public static PublicKeys copyOf(PublicKeys src, Arena arena) {
+        PublicKeys res = new PublicKeys(copyOf(src.getB(), arena), copyOf(src.getA(), arena));
+        res.setRelinKeys(copyOf(src.relinKeyB, arena), copyOf(src.relinKeyA, arena));
+        src.galoisKeys.forEach((galoisElt, galoisKey) -> res.setGaloisKeys(galoisElt, copyOf(galoisKey[0], arena),
+                copyOf(galoisKey[1], arena)));
+        return res;
+    }
+
+    private static PolynomialStorage copyOf(PolynomialStorage storage, Arena arena) {
+        long[] values = storage.array();
+        if (values != null)
+            return new OffHeapStorage(arena, values);
+
+        OffHeapStorage res = new OffHeapStorage(arena, storage.length());
+        MemorySegment.copy(((OffHeapStorage) storage).segment, 0, res.segment, 0, res.segment.byteSize());
+        return res;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public long get(int idx) {
+        return segment.getAtIndex(ValueLayout.JAVA_LONG, idx);
+    }
+
+    @Override
+    public void set(int idx, long value) {
+        segment.setAtIndex(ValueLayout.JAVA_LONG, idx, value);
+    }
+
+    @Override
+    public void copyTo(int idx, long[] dest, int destIdx, int length) {
+        MemorySegment.copy(segment, ValueLayout.JAVA_LONG, (long) idx * Long.BYTES, dest, destIdx, length);
+    }
+
+    @Override
+    public void copyFrom(long[] src, int srcIdx, int idx, int length) {
+        MemorySegment.copy(src, srcIdx, segment, ValueLayout.JAVA_LONG, (long) idx * Long.BYTES, length);
+    }
+
+    @Override
+    public PolynomialStorage copy(int length) {
+        OffHeapStorage res = new OffHeapStorage(arena, length);
+        MemorySegment.copy(segment, 0, res.segment, 0, (long) length * Long.BYTES);
+        return res;
+    }
+
+    @Override
+    public PolynomialStorage allocate(int length) {
+        // arena allocations are zeroed
+        return new OffHeapStorage(arena, length);
+    }
+
+    @Override
+    public PolynomialStorage from(long[] values) {
+        return new OffHeapStorage(arena, values);
+    }
+
+    @Override
+    public long[] array() {
+        return null;
+    }
+}
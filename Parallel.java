@@ -0,0 +1,101 @@
+package ckks;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Runs the limbs of an operation on the Context's ForkJoinPool (see
+// Context.setPool), splitting each limb into blocks of coefficients when there
+// are fewer limbs than worker threads. Callers check enabled first and keep a
+// plain loop for the sequential case, so that small operations, and every
+// operation when no pool is set, don't pay for the tasks.
+final class Parallel {
+    // below this many coefficients an operation runs on the calling thread
+    static final int THRESHOLD = 1 << 14;
+
+    // the smallest block of coefficients of a limb that is given its own task
+    static final int MIN_BLOCK = 1 << 11;
+
+    private Parallel() {
+    }
+
+    interface LimbRange {
+        // the coefficients [from, to) of the limb at limbIdx, 0 <= from < to <= N
+        void apply(int limbIdx, int from, int to);
+    }
+
+    interface Range {
+        // the coefficients [from, to)
+        void apply(int from, int to);
+    }
+
+    // whether an operation on the given number of coefficients should be split
+    static boolean enabled(Context context, int coeffs) {
+        return context.getPool() != null && coeffs >= THRESHOLD;
+    }
+
+    // range over the limbs [0, limbs) of N coefficients, splitting them into blocks
+    // when there are fewer limbs than worker threads
+    static void forEachLimb(Context context, int limbs, int N, LimbRange range) {
+        ForkJoinPool pool = context.getPool();
+
+        int blocks = 1;
+        while (limbs * blocks < pool.getParallelism() && N / (blocks * 2) >= MIN_BLOCK)
+            blocks *= 2;
+
+        pool.invoke(new LimbTask(range, N, blocks, 0, limbs * blocks));
+    }
+
+    // same, with every limb processed as a whole, for kernels such as the NTT which
+    // can't be split by coefficients
+    static void forEachWholeLimb(Context context, int limbs, int N, LimbRange range) {
+        context.getPool().invoke(new LimbTask(range, N, 1, 0, limbs));
+    }
+
+    // range over the coefficients [0, N), for kernels working across the limbs of
+    // each coefficient, such as the basis conversions
+    static void forEachBlock(Context context, int N, Range range) {
+        forEachBlock(context.getPool(), N, MIN_BLOCK, range);
+    }
+
+    // same, on the given pool and with blocks of at least minBlock coefficients
+    static void forEachBlock(ForkJoinPool pool, int N, int minBlock, Range range) {
+        int blocks = 1;
+        while (blocks < pool.getParallelism() && N / (blocks * 2) >= minBlock)
+            blocks *= 2;
+
+        pool.invoke(new LimbTask((limbIdx, from, to) -> range.apply(from, to), N, blocks, 0, blocks));
+    }
+
+    // splits the chunks [lo, hi) in halves, where chunk c is the (c % blocks)'th
+    // block of the limb c / blocks. Serializable through ForkJoinTask, but never
+    // serialized
+    @SuppressWarnings("serial")
+    private static final class LimbTask extends RecursiveAction {
+        private final LimbRange range;
+        private final int N, blocks, lo, hi;
+
+        LimbTask(LimbRange range, int N, int blocks, int lo, int hi) {
+            this.range = range;
+            this.N = N;
+            this.blocks = blocks;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new LimbTask(range, N, blocks, lo, mid), new LimbTask(range, N, blocks, mid, hi));
+                return;
+            }
+
+            if (hi == lo)
+                return;
+
+            int block = N / blocks;
+            int from = (lo % blocks) * block;
+            range.apply(lo / blocks, from, from + block);
+        }
+    }
+}
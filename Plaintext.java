@@ -9,6 +9,9 @@ public class Plaintext {
 
     private int level;
 
+    // set on plaintexts shared through a PlaintextCache, which must not change
+    private boolean readOnly;
+
     public Plaintext(Context context) {
         this.context = context;
     }
@@ -31,6 +34,8 @@ public class Plaintext {
     }
 
     public void init(Polynomial m, double scale, int level) {
+        assertWritable();
+
         this.m = m;
         this.level = level;
         this.scale = scale;
@@ -49,6 +54,8 @@ public class Plaintext {
     }
 
     public void setScale(double scale) {
+        assertWritable();
+
         this.scale = scale;
     }
 
@@ -57,9 +64,24 @@ public class Plaintext {
     }
 
     public void setLevel(int level) {
+        assertWritable();
+
         this.level = level;
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    void setReadOnly() {
+        this.readOnly = true;
+    }
+
+    void assertWritable() {
+        if (readOnly)
+            throw new IllegalStateException("Plaintext is read-only.");
+    }
+
     public void debugPrint() {
         System.out.println("m:");
         m.debugPrint();
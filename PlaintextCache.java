@@ -0,0 +1,195 @@
+package ckks;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded cache of encoded plaintexts in front of an Encoder, for constants
+// such as weights and masks that are encoded over and over. Entries are keyed
+// by the contents of the input vector together with the level and scale, and
+// the least recently used ones are evicted once their total size exceeds the
+// byte budget. The returned plaintexts are shared between callers and threads,
+// so they are read-only: use new Plaintext(p) for a copy that can be changed.
+// Thread-safe. Encoding runs outside the lock, so concurrent misses on the same
+// key may encode it more than once, but all of them get the cached instance.
+public class PlaintextCache {
+    private final Encoder encoder;
+
+    private final Context context;
+
+    private final long maxBytes;
+
+    // in access order, i.e. least recently used first
+    private final LinkedHashMap<Key, Plaintext> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    private long hits, misses, evictions;
+
+    public PlaintextCache(Context context, Encoder encoder, long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("Byte budget should be non-negative");
+
+        this.context = context;
+        this.encoder = encoder;
+        this.maxBytes = maxBytes;
+    }
+
+    // the plaintext of src at the top level with the default scale
+    public Plaintext get(Complex[] src) {
+        return get(new ComplexVector(src), context.topLevel, context.defaultScale);
+    }
+
+    public Plaintext get(Complex[] src, int level, double scale) {
+        return get(new ComplexVector(src), level, scale);
+    }
+
+    public Plaintext get(ComplexVector src) {
+        return get(src, context.topLevel, context.defaultScale);
+    }
+
+    // the plaintext of src at the given level and scale, see
+    // Encoder.encode(ComplexVector, int, double, Plaintext)
+    public Plaintext get(ComplexVector src, int level, double scale) {
+        Key probe = new Key(src.re, src.im, level, scale);
+
+        Plaintext res = lookup(probe);
+        if (res != null)
+            return res;
+
+        res = new Plaintext(context);
+        encoder.encode(src, level, scale, res);
+
+        return insert(new Key(src.re.clone(), src.im.clone(), level, scale), res);
+    }
+
+    public Plaintext get(double[] src) {
+        return get(src, context.topLevel, context.defaultScale);
+    }
+
+    // the plaintext of the real values src at the given level and scale, see
+    // Encoder.encode(double[], int, double, Plaintext)
+    public Plaintext get(double[] src, int level, double scale) {
+        Key probe = new Key(src, null, level, scale);
+
+        Plaintext res = lookup(probe);
+        if (res != null)
+            return res;
+
+        res = new Plaintext(context);
+        encoder.encode(src, level, scale, res);
+
+        return insert(new Key(src.clone(), null, level, scale), res);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // the bytes held by the cached plaintexts and their keys
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private synchronized Plaintext lookup(Key key) {
+        Plaintext res = entries.get(key);
+        if (res != null)
+            hits++;
+        else
+            misses++;
+
+        return res;
+    }
+
+    // caches p under key, unless another thread cached the key first, and returns
+    // the cached instance. A plaintext larger than the budget isn't cached
+    private synchronized Plaintext insert(Key key, Plaintext p) {
+        p.setReadOnly();
+
+        Plaintext existing = entries.get(key);
+        if (existing != null)
+            return existing;
+
+        long size = sizeOf(key, p);
+        if (size > maxBytes)
+            return p;
+
+        entries.put(key, p);
+        bytes += size;
+
+        Iterator<Map.Entry<Key, Plaintext>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes) {
+            Map.Entry<Key, Plaintext> eldest = it.next();
+            bytes -= sizeOf(eldest.getKey(), eldest.getValue());
+            it.remove();
+            evictions++;
+        }
+
+        return p;
+    }
+
+    private static long sizeOf(Key key, Plaintext p) {
+        long limbs = (long) (p.getLevel() + 1) * p.getM().getN();
+        long values = key.re.length + (key.im == null ? 0 : key.im.length);
+        return (limbs + values) * Long.BYTES;
+    }
+
+    // the contents of the encoded vector, where im is null for real values
+    private static final class Key {
+        final double[] re, im;
+        final int level;
+        final double scale;
+        final int hash;
+
+        Key(double[] re, double[] im, int level, double scale) {
+            this.re = re;
+            this.im = im;
+            this.level = level;
+            this.scale = scale;
+
+            int h = Arrays.hashCode(re);
+            h = 31 * h + Arrays.hashCode(im);
+            h = 31 * h + level;
+            h = 31 * h + Double.hashCode(scale);
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+
+            Key that = (Key) o;
+            return hash == that.hash && level == that.level
+                    && Double.doubleToLongBits(scale) == Double.doubleToLongBits(that.scale)
+                    && Arrays.equals(re, that.re) && Arrays.equals(im, that.im);
+        }
+    }
+}
@@ -5,25 +5,51 @@ import java.util.Arrays;
 public class Polynomial {
     final static boolean debug = false;
 
+    // element-wise operations use the Vector API backend (PolynomialVectorOps) when
+    // the jdk.incubator.vector module is resolved, e.g. with
+    // --add-modules jdk.incubator.vector, unless -Dckks.vector=false is given.
+    // tensor always runs the scalar kernels, see PolynomialVectorOps
+    final static boolean vectorized = initVectorized();
+
+    // per-thread limbs for staging off-heap polynomials, see forEachLimb
+    private static final ThreadLocal<long[][]> limbScratch = new ThreadLocal<>();
+
     private Context context;
 
-    private long[][] crt;
+    // one limb per prime up to level, one after the other, i.e. the limb of the i'th
+    // prime is in [i * N, (i + 1) * N). Anything after the limb of the level (e.g.
+    // the limb dropped by a rescale, when the storage is reused) is ignored. On the
+    // heap unless the polynomial was created through OffHeapStorage
+    private PolynomialStorage crt;
+
+    private int level;
 
     // c'tors
     public Polynomial() {
     }
 
-    public Polynomial(Context context, long[][] crt) {
+    public Polynomial(Context context, long[] crt) {
         this.context = context;
-        this.crt = crt;
+        this.crt = new HeapStorage(crt);
+        this.level = crt.length / (context.slots * 2) - 1;
+    }
+
+    // zero polynomial with the limbs of the primes up to level
+    public Polynomial(Context context, int level) {
+        this(context, new long[(level + 1) * context.slots * 2]);
     }
 
     public Polynomial(Polynomial poly) {
         this.context = poly.context;
-        this.crt = new long[context.primes.length][context.slots * 2];
-        for (int i = 0; i < context.primes.length; i++)
-            for (int j = 0; j < context.slots * 2; j++)
-                this.crt[i][j] = poly.crt[i][j];
+        this.crt = poly.crt.copy(poly.liveLength());
+        this.level = poly.level;
+    }
+
+    // same context as poly, with the given limbs
+    Polynomial(Polynomial poly, PolynomialStorage crt) {
+        this.context = poly.context;
+        this.crt = crt;
+        this.level = crt.length() / getN() - 1;
     }
 
     // methods
@@ -34,9 +60,14 @@ public class Polynomial {
     }
 
     public void add_inplace(Polynomial that) {
-        for (int primeIdx = 0; primeIdx < context.primes.length; primeIdx++)
-            for (int i = 0; i < context.slots * 2; i++)
-                crt[primeIdx][i] = Maths.mod(crt[primeIdx][i] + that.crt[primeIdx][i], context.primes[primeIdx]);
+        validateLimbs(that);
+        forEachLimb(that, null, ADD, 0);
+    }
+
+    // adds the integral scalar, of any magnitude, to every coefficient, i.e. to the
+    // constant term when in NTT form. See mult_inplace(double)
+    public void add_inplace(double scalar) {
+        forEachLimb(null, null, ADD_SCALAR_DOUBLE, Double.doubleToRawLongBits(scalar));
     }
 
     public Polynomial sub(Polynomial that) {
@@ -46,9 +77,8 @@ public class Polynomial {
     }
 
     public void sub_inplace(Polynomial that) {
-        for (int primeIdx = 0; primeIdx < context.primes.length; primeIdx++)
-            for (int i = 0; i < context.slots * 2; i++)
-                crt[primeIdx][i] = Maths.mod(crt[primeIdx][i] - that.crt[primeIdx][i], context.primes[primeIdx]);
+        validateLimbs(that);
+        forEachLimb(that, null, SUB, 0);
     }
 
     public Polynomial mult(Polynomial that) {
@@ -61,24 +91,17 @@ public class Polynomial {
         if (debug) {
             System.out.println("Polynomial mult_inplace:");
             System.out.println("this crt:");
-            System.out.println(Arrays.deepToString(crt));
+            debugPrint();
             System.out.println("that crt:");
-            System.out.println(Arrays.deepToString(that.crt));
+            that.debugPrint();
         }
 
-        for (int primeIdx = 0; primeIdx < context.primes.length; primeIdx++)
-            for (int i = 0; i < context.slots * 2; i++) {
-                if (debug)
-                    System.out.println("calculating " + crt[primeIdx][i] + " * " + that.crt[primeIdx][i] + " mod "
-                            + context.primes[primeIdx]);
-                crt[primeIdx][i] = Maths.modMult(crt[primeIdx][i], that.crt[primeIdx][i], context.primes[primeIdx]);
-                if (debug)
-                    System.out.println("result= " + crt[primeIdx][i]);
-            }
+        validateLimbs(that);
+        forEachLimb(that, null, MULT, 0);
 
         if (debug) {
             System.out.println("res crt:");
-            System.out.println(Arrays.deepToString(crt));
+            debugPrint();
             System.out.println();
         }
     }
@@ -90,9 +113,27 @@ public class Polynomial {
     }
 
     public void mult_inplace(int scalar) {
-        for (int primeIdx = 0; primeIdx < context.primes.length; primeIdx++)
-            for (int i = 0; i < context.slots * 2; i++)
-                crt[primeIdx][i] = Maths.modMult(crt[primeIdx][i], scalar, context.primes[primeIdx]);
+        forEachLimb(null, null, MULT_SCALAR, scalar);
+    }
+
+    // for an integral scalar of any magnitude, e.g. a constant rounded at a scale
+    // beyond 2^63. It is reduced exactly once per limb, see Maths.mod
+    public void mult_inplace(double scalar) {
+        forEachLimb(null, null, MULT_SCALAR_DOUBLE, Double.doubleToRawLongBits(scalar));
+    }
+
+    // this = this + x * y, in a single pass and without intermediate polynomials
+    public void multiplyAdd(Polynomial x, Polynomial y) {
+        validateLimbs(x);
+        validateLimbs(y);
+        forEachLimb(x, y, MULTIPLY_ADD, 0);
+    }
+
+    // this = this - x * y, in a single pass and without intermediate polynomials
+    public void multiplySub(Polynomial x, Polynomial y) {
+        validateLimbs(x);
+        validateLimbs(y);
+        forEachLimb(x, y, MULTIPLY_SUB, 0);
     }
 
     public Polynomial square() {
@@ -105,20 +146,353 @@ public class Polynomial {
         mult_inplace(this);
     }
 
-    public long[][] getCrt() {
-        return crt;
+    // the tensor product of the ciphertexts (b, a) and (bOther, aOther) at the
+    // level of b: d0 = b * bOther, d1 = b * aOther + a * bOther, d2 = a * aOther.
+    // Karatsuba style, with d1 = (b + a) * (bOther + aOther) - d0 - d2, so three
+    // products per coefficient instead of four, in a single pass. Element by
+    // element, so the outputs may share storage with the inputs. d0, d1 and d2
+    // must already be at that level, see reset
+    static void tensor(Polynomial b, Polynomial a, Polynomial bOther, Polynomial aOther, Polynomial d0,
+            Polynomial d1, Polynomial d2) {
+        b.validateLimbs(a);
+        b.validateLimbs(bOther);
+        b.validateLimbs(aOther);
+
+        Context context = b.context;
+        int N = b.getN();
+        int limbs = b.level + 1;
+
+        boolean onHeap = !b.isOffHeap() && !a.isOffHeap() && !bOther.isOffHeap() && !aOther.isOffHeap()
+                && !d0.isOffHeap() && !d1.isOffHeap() && !d2.isOffHeap();
+
+        if (onHeap) {
+            long[] bs = b.crt.array(), as = a.crt.array(), bOthers = bOther.crt.array(), aOthers = aOther.crt.array();
+            long[] d0s = d0.crt.array(), d1s = d1.crt.array(), d2s = d2.crt.array();
+
+            if (Parallel.enabled(context, limbs * N)) {
+                Parallel.forEachLimb(context, limbs, N, (primeIdx, from, to) -> tensor(context, bs, as, bOthers,
+                        aOthers, d0s, d1s, d2s, primeIdx * N + from, to - from, primeIdx));
+            } else {
+                for (int primeIdx = 0; primeIdx < limbs; primeIdx++)
+                    tensor(context, bs, as, bOthers, aOthers, d0s, d1s, d2s, primeIdx * N, N, primeIdx);
+            }
+            return;
+        }
+
+        Polynomial[] operands = { b, a, bOther, aOther, d0, d1, d2 };
+        long[][] scratch = limbScratch(7, N);
+
+        for (int primeIdx = 0; primeIdx < limbs; primeIdx++) {
+            for (int i = 0; i < 4; i++)
+                operands[i].crt.copyTo(primeIdx * N, scratch[i], 0, N);
+
+            tensor(context, scratch[0], scratch[1], scratch[2], scratch[3], scratch[4], scratch[5], scratch[6], 0, N,
+                    primeIdx);
+
+            for (int i = 4; i < 7; i++)
+                operands[i].crt.copyFrom(scratch[i], 0, primeIdx * N, N);
+        }
     }
 
-    public long[] serialize() {
-        long[] res = new long[2 + crt.length * crt[0].length];
+    // the elements [offset, offset + length) of tensor, all in the limb of the prime
+    // at primeIdx
+    private static void tensor(Context context, long[] bs, long[] as, long[] bOthers, long[] aOthers, long[] d0s,
+            long[] d1s, long[] d2s, int offset, int length, int primeIdx) {
+        long prime = context.primes[primeIdx];
+        long mInv = context.primesMontInvs[primeIdx];
+        long r2 = context.primesMontR2s[primeIdx];
+
+        for (int i = offset; i < offset + length; i++) {
+            long bi = bs[i], ai = as[i], bOtheri = bOthers[i], aOtheri = aOthers[i];
+            long d0i = Maths.modMult(bi, bOtheri, prime, mInv, r2);
+            long d2i = Maths.modMult(ai, aOtheri, prime, mInv, r2);
+            long sum = Maths.modMult(Maths.modAdd(bi, ai, prime), Maths.modAdd(bOtheri, aOtheri, prime), prime,
+                    mInv, r2);
+            d0s[i] = d0i;
+            d1s[i] = Maths.modSub(Maths.modSub(sum, d0i, prime), d2i, prime);
+            d2s[i] = d2i;
+        }
+    }
+
+    // the limbs, see crt. Only for polynomials on the heap, use toArray or copyTo
+    // otherwise
+    public long[] getCrt() {
+        long[] res = crt.array();
+        if (res == null)
+            throw new IllegalStateException("Polynomial is stored off-heap.");
+        return res;
+    }
+
+    // a copy of the limbs up to the level on the heap
+    public long[] toArray() {
+        long[] res = new long[liveLength()];
+        crt.copyTo(0, res, 0, res.length);
+        return res;
+    }
+
+    // dest[destIdx, destIdx + length) = getCrt()[idx, idx + length)
+    public void copyTo(int idx, long[] dest, int destIdx, int length) {
+        crt.copyTo(idx, dest, destIdx, length);
+    }
+
+    // getCrt()[idx, idx + length) = src[srcIdx, srcIdx + length)
+    void copyFrom(long[] src, int srcIdx, int idx, int length) {
+        crt.copyFrom(src, srcIdx, idx, length);
+    }
+
+    // makes this a copy of src, reusing the storage if it is big enough
+    void copyFrom(Polynomial src) {
+        reset(src.level);
+
+        int N = getN();
+        long[] dest = crt.array();
+        long[] values = src.crt.array();
+        long[] scratch = dest == null && values == null ? limbScratch(1, N)[0] : null;
+
+        for (int offset = 0; offset < liveLength(); offset += N) {
+            if (dest != null) {
+                src.crt.copyTo(offset, dest, offset, N);
+            } else if (values != null) {
+                crt.copyFrom(values, offset, offset, N);
+            } else {
+                src.crt.copyTo(offset, scratch, 0, N);
+                crt.copyFrom(scratch, 0, offset, N);
+            }
+        }
+    }
+
+    // sets the level, keeping the storage when it can hold the limbs up to it.
+    // The contents of any new limbs are undefined. The storage is kept on purpose
+    // when the level drops (e.g. in rescale): the evaluator refills the same
+    // ciphertexts as dest at any level, and trimming would allocate again on the
+    // next one. Only the live limbs are ever copied or serialized, see liveLength
+    void reset(int level) {
+        if (crt.length() < (level + 1) * getN())
+            crt = crt.allocate((level + 1) * getN());
+        this.level = level;
+    }
+
+    public long get(int primeIdx, int coeffIdx) {
+        return crt.get(getLimbOffset(primeIdx) + coeffIdx);
+    }
+
+    public void set(int primeIdx, int coeffIdx, long value) {
+        crt.set(getLimbOffset(primeIdx) + coeffIdx, value);
+    }
+
+    // index of the first coefficient of the given prime's limb in getCrt()
+    public int getLimbOffset(int primeIdx) {
+        return primeIdx * getN();
+    }
+
+    // the number of coefficients in each limb
+    public int getN() {
+        return context.slots * 2;
+    }
+
+    public int getLevel() {
+        return level;
+    }
 
-        int idx = 0;
-        res[idx++] = crt.length;
-        res[idx++] = crt[0].length;
+    public boolean isOffHeap() {
+        return crt.array() == null;
+    }
+
+    Context getContext() {
+        return context;
+    }
+
+    // a polynomial with the given limbs, stored the same way as this one
+    Polynomial newLike(long[] crt) {
+        return new Polynomial(this, this.crt.from(crt));
+    }
+
+    // a zero polynomial at level, stored the same way as this one
+    Polynomial newLike(int level) {
+        return new Polynomial(this, crt.allocate((level + 1) * getN()));
+    }
+
+    private int liveLength() {
+        return (level + 1) * getN();
+    }
+
+    // the other operand may be at a higher level (e.g. a plaintext or a key), in
+    // which case only its limbs up to this polynomial's level take part
+    private void validateLimbs(Polynomial that) {
+        if (that.level < level)
+            throw new IllegalArgumentException(
+                    "Operand level " + that.level + " is lower than the polynomial's level " + level);
+    }
+
+    // applies kernel to the limbs up to this polynomial's level. In place when the
+    // polynomials are on the heap, and then in parallel if the context has a pool,
+    // otherwise one limb at a time through scratch arrays. that and that2 may be null for kernels with fewer operands
+    private void forEachLimb(Polynomial that, Polynomial that2, LimbKernel kernel, long arg) {
+        int N = getN();
+        int limbs = level + 1;
+
+        long[] dest = crt.array();
+        long[] other = that == null ? null : that.crt.array();
+        long[] other2 = that2 == null ? null : that2.crt.array();
+        if (dest != null && (that == null || other != null) && (that2 == null || other2 != null)) {
+            if (Parallel.enabled(context, limbs * N)) {
+                Parallel.forEachLimb(context, limbs, N, (primeIdx, from, to) -> kernel.apply(context, dest, other,
+                        other2, primeIdx * N + from, to - from, primeIdx, arg));
+                return;
+            }
+
+            for (int primeIdx = 0; primeIdx < limbs; primeIdx++)
+                kernel.apply(context, dest, other, other2, primeIdx * N, N, primeIdx, arg);
+            return;
+        }
+
+        long[][] scratch = limbScratch(3, N);
+        for (int primeIdx = 0; primeIdx < limbs; primeIdx++) {
+            crt.copyTo(primeIdx * N, scratch[0], 0, N);
+            if (that != null)
+                that.crt.copyTo(primeIdx * N, scratch[1], 0, N);
+            if (that2 != null)
+                that2.crt.copyTo(primeIdx * N, scratch[2], 0, N);
+            kernel.apply(context, scratch[0], scratch[1], scratch[2], 0, N, primeIdx, arg);
+            crt.copyFrom(scratch[0], 0, primeIdx * N, N);
+        }
+    }
+
+    // at least the given number of limbs of N coefficients, reused by the thread
+    private static long[][] limbScratch(int limbs, int N) {
+        long[][] res = limbScratch.get();
+        if (res == null || res.length < limbs || res[0].length < N) {
+            res = new long[Math.max(limbs, res == null ? 0 : res.length)][N];
+            limbScratch.set(res);
+        }
+        return res;
+    }
+
+    private interface LimbKernel {
+        // [offset, offset + N) of dest and of the other operands, all in the limb of
+        // the prime at primeIdx (the whole limb, or a block of it when running in
+        // parallel). arg is the kernel's scalar argument, if any
+        void apply(Context context, long[] dest, long[] other, long[] other2, int offset, int N, int primeIdx,
+                long arg);
+    }
+
+    // the kernels don't capture anything, so that they aren't allocated per call
+    private static final LimbKernel ADD = (context, dest, other, other2, offset, N, primeIdx, arg) -> {
+        long prime = context.primes[primeIdx];
+
+        if (vectorized) {
+            PolynomialVectorOps.add_inplace(dest, other, offset, N, prime);
+            return;
+        }
+
+        for (int i = offset; i < offset + N; i++)
+            dest[i] = Maths.modAdd(dest[i], other[i], prime);
+    };
+
+    // arg holds the bits of the double
+    private static final LimbKernel ADD_SCALAR_DOUBLE = (context, dest, other, other2, offset, N, primeIdx, bits) -> {
+        long prime = context.primes[primeIdx];
+        long scalarMod = Maths.mod(Double.longBitsToDouble(bits), prime);
+
+        if (vectorized) {
+            PolynomialVectorOps.add_inplace(dest, offset, N, scalarMod, prime);
+            return;
+        }
+
+        for (int i = offset; i < offset + N; i++)
+            dest[i] = Maths.modAdd(dest[i], scalarMod, prime);
+    };
+
+    private static final LimbKernel SUB = (context, dest, other, other2, offset, N, primeIdx, arg) -> {
+        long prime = context.primes[primeIdx];
+
+        if (vectorized) {
+            PolynomialVectorOps.sub_inplace(dest, other, offset, N, prime);
+            return;
+        }
+
+        for (int i = offset; i < offset + N; i++)
+            dest[i] = Maths.modSub(dest[i], other[i], prime);
+    };
+
+    private static final LimbKernel MULT = (context, dest, other, other2, offset, N, primeIdx, arg) -> {
+        long prime = context.primes[primeIdx];
+        long mInv = context.primesMontInvs[primeIdx];
+        long r2 = context.primesMontR2s[primeIdx];
+
+        if (vectorized) {
+            PolynomialVectorOps.mult_inplace(dest, other, offset, N, prime, mInv, r2);
+            return;
+        }
+
+        for (int i = offset; i < offset + N; i++) {
+            if (debug)
+                System.out.println("calculating " + dest[i] + " * " + other[i] + " mod " + prime);
+            dest[i] = Maths.modMult(dest[i], other[i], prime, mInv, r2);
+            if (debug)
+                System.out.println("result= " + dest[i]);
+        }
+    };
+
+    private static final LimbKernel MULTIPLY_ADD = (context, dest, other, other2, offset, N, primeIdx, arg) -> {
+        long prime = context.primes[primeIdx];
+        long mInv = context.primesMontInvs[primeIdx];
+        long r2 = context.primesMontR2s[primeIdx];
 
-        for (int i = 0; i < crt.length; i++)
-            for (int j = 0; j < crt[0].length; j++)
-                res[idx++] = crt[i][j];
+        if (vectorized) {
+            PolynomialVectorOps.multiplyAdd_inplace(dest, other, other2, offset, N, prime, mInv, r2);
+            return;
+        }
+
+        for (int i = offset; i < offset + N; i++)
+            dest[i] = Maths.modAdd(dest[i], Maths.modMult(other[i], other2[i], prime, mInv, r2), prime);
+    };
+
+    private static final LimbKernel MULTIPLY_SUB = (context, dest, other, other2, offset, N, primeIdx, arg) -> {
+        long prime = context.primes[primeIdx];
+        long mInv = context.primesMontInvs[primeIdx];
+        long r2 = context.primesMontR2s[primeIdx];
+
+        if (vectorized) {
+            PolynomialVectorOps.multiplySub_inplace(dest, other, other2, offset, N, prime, mInv, r2);
+            return;
+        }
+
+        for (int i = offset; i < offset + N; i++)
+            dest[i] = Maths.modSub(dest[i], Maths.modMult(other[i], other2[i], prime, mInv, r2), prime);
+    };
+
+    private static final LimbKernel MULT_SCALAR = (context, dest, other, other2, offset, N, primeIdx, scalar) -> {
+        long prime = context.primes[primeIdx];
+        multScalar(dest, offset, N, Maths.mod(scalar, prime), prime);
+    };
+
+    // arg holds the bits of the double
+    private static final LimbKernel MULT_SCALAR_DOUBLE = (context, dest, other, other2, offset, N, primeIdx,
+            bits) -> {
+        long prime = context.primes[primeIdx];
+        multScalar(dest, offset, N, Maths.mod(Double.longBitsToDouble(bits), prime), prime);
+    };
+
+    // scalarMod in [0, prime)
+    private static void multScalar(long[] dest, int offset, int N, long scalarMod, long prime) {
+        long scalarShoup = Maths.shoupPrecompute(scalarMod, prime);
+
+        if (vectorized) {
+            PolynomialVectorOps.mult_inplace(dest, offset, N, scalarMod, scalarShoup, prime);
+            return;
+        }
+
+        for (int i = offset; i < offset + N; i++)
+            dest[i] = Maths.shoupMult(dest[i], scalarMod, scalarShoup, prime);
+    }
+
+    public long[] serialize() {
+        long[] res = new long[2 + liveLength()];
+
+        res[0] = level + 1;
+        res[1] = getN();
+        crt.copyTo(0, res, 2, liveLength());
 
         return res;
     }
@@ -126,16 +500,31 @@ public class Polynomial {
     public void deserialize(Context context, long[] serialization) {
         this.context = context;
 
-        int idx = 0;
+        long[] values = new long[(int) serialization[0] * (int) serialization[1]];
+        System.arraycopy(serialization, 2, values, 0, values.length);
+        crt = new HeapStorage(values);
+        level = (int) serialization[0] - 1;
+    }
+
+    private static boolean initVectorized() {
+        if (!Boolean.parseBoolean(System.getProperty("ckks.vector", "true")))
+            return false;
 
-        crt = new long[(int) serialization[idx++]][(int) serialization[idx++]];
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+            return false;
 
-        for (int i = 0; i < crt.length; i++)
-            for (int j = 0; j < crt[0].length; j++)
-                crt[i][j] = serialization[idx++];
+        try {
+            // no point in the backend without actual SIMD support
+            return PolynomialVectorOps.lanes() > 1;
+        } catch (LinkageError e) {
+            return false;
+        }
     }
 
     public void debugPrint() {
-        System.out.println(Arrays.deepToString(crt));
+        int N = getN();
+        long[] values = toArray();
+        for (int primeIdx = 0; primeIdx <= level; primeIdx++)
+            System.out.println(Arrays.toString(Arrays.copyOfRange(values, primeIdx * N, (primeIdx + 1) * N)));
     }
 }
@@ -0,0 +1,31 @@
+package ckks;
+
+// Backing store of the limbs of a Polynomial (or of a key), indexed as in
+// Polynomial.getCrt(). HeapStorage keeps them in a long[], OffHeapStorage in
+// native memory. The arithmetic always runs on heap arrays, so off-heap limbs
+// are staged through scratch arrays with copyTo and copyFrom.
+interface PolynomialStorage {
+    int length();
+
+    long get(int idx);
+
+    void set(int idx, long value);
+
+    // dest[destIdx, destIdx + length) = this[idx, idx + length)
+    void copyTo(int idx, long[] dest, int destIdx, int length);
+
+    // this[idx, idx + length) = src[srcIdx, srcIdx + length)
+    void copyFrom(long[] src, int srcIdx, int idx, int length);
+
+    // a copy of [0, length), allocated the same way
+    PolynomialStorage copy(int length);
+
+    // zeroed storage for length elements, allocated the same way
+    PolynomialStorage allocate(int length);
+
+    // storage allocated the same way holding values, which it may take ownership of
+    PolynomialStorage from(long[] values);
+
+    // the backing array, or null when the storage isn't on the heap
+    long[] array();
+}
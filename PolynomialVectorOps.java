@@ -0,0 +1,216 @@
+package ckks;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Element-wise modular arithmetic over RNS limbs using the JDK Vector API. This
+// class must only be loaded when the jdk.incubator.vector module is available,
+// see Polynomial. Every method works on the length elements starting at offset,
+// i.e. on a single limb, processes whole vectors and finishes the tail with the
+// scalar kernels from Maths.
+//
+// Products of two limbs use the Montgomery kernel with emulated high
+// multiplications. Its whole body sits in one loop (multiply): split into
+// helpers returning LongVector it is too big for C2 to inline, and then every
+// vector gets boxed on every call. There is no vector tensor for the same
+// reason, three products in one body no longer get inlined, see Polynomial.
+final class PolynomialVectorOps {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    private static final long LOW_MASK = 0xFFFFFFFFL;
+
+    private PolynomialVectorOps() {
+    }
+
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    // dest = dest + other mod m, where both are in [0, m)
+    static void add_inplace(long[] dest, long[] other, int offset, int length, long m) {
+        int end = offset + length;
+        int i = offset;
+        int bound = offset + SPECIES.loopBound(length);
+        for (; i < bound; i += SPECIES.length()) {
+            LongVector a = LongVector.fromArray(SPECIES, dest, i);
+            LongVector b = LongVector.fromArray(SPECIES, other, i);
+            modAdd(a, b, m).intoArray(dest, i);
+        }
+
+        for (; i < end; i++)
+            dest[i] = Maths.modAdd(dest[i], other[i], m);
+    }
+
+    // dest = dest + w mod m, where both are in [0, m)
+    static void add_inplace(long[] dest, int offset, int length, long w, long m) {
+        LongVector wVec = LongVector.broadcast(SPECIES, w);
+
+        int end = offset + length;
+        int i = offset;
+        int bound = offset + SPECIES.loopBound(length);
+        for (; i < bound; i += SPECIES.length()) {
+            LongVector a = LongVector.fromArray(SPECIES, dest, i);
+            modAdd(a, wVec, m).intoArray(dest, i);
+        }
+
+        for (; i < end; i++)
+            dest[i] = Maths.modAdd(dest[i], w, m);
+    }
+
+    // dest = dest - other mod m, where both are in [0, m)
+    static void sub_inplace(long[] dest, long[] other, int offset, int length, long m) {
+        int end = offset + length;
+        int i = offset;
+        int bound = offset + SPECIES.loopBound(length);
+        for (; i < bound; i += SPECIES.length()) {
+            LongVector a = LongVector.fromArray(SPECIES, dest, i);
+            LongVector b = LongVector.fromArray(SPECIES, other, i);
+            modSub(a, b, m).intoArray(dest, i);
+        }
+
+        for (; i < end; i++)
+            dest[i] = Maths.modSub(dest[i], other[i], m);
+    }
+
+    // dest = dest * other mod m, where both are in [0, m). Same Montgomery kernel
+    // as Maths.modMult(a, z, m, mInv, r2)
+    static void mult_inplace(long[] dest, long[] other, int offset, int length, long m, long mInv, long r2) {
+        multiply(dest, dest, other, offset, length, m, mInv, r2, SET);
+    }
+
+    // dest = dest + x * y mod m, where all are in [0, m)
+    static void multiplyAdd_inplace(long[] dest, long[] x, long[] y, int offset, int length, long m, long mInv,
+            long r2) {
+        multiply(dest, x, y, offset, length, m, mInv, r2, ADD);
+    }
+
+    // dest = dest - x * y mod m, where all are in [0, m)
+    static void multiplySub_inplace(long[] dest, long[] x, long[] y, int offset, int length, long m, long mInv,
+            long r2) {
+        multiply(dest, x, y, offset, length, m, mInv, r2, SUB);
+    }
+
+    private static final int SET = 0, ADD = 1, SUB = 2;
+
+    // dest = x * y, dest + x * y or dest - x * y mod m, depending on op. Written out
+    // in full on purpose, see the top of the file
+    private static void multiply(long[] dest, long[] x, long[] y, int offset, int length, long m, long mInv, long r2,
+            int op) {
+        long mLo = m & LOW_MASK, mHi = m >>> 32;
+
+        // the Montgomery product carries a factor of 2^-64, which is cancelled by a
+        // Shoup multiplication by 2^64 mod m. Cheaper than a second Montgomery
+        // multiplication by r2 when the high products are emulated
+        long r = Long.remainderUnsigned(-m, m);
+        long rShoup = Maths.shoupPrecompute(r, m);
+        long rShoupLo = rShoup & LOW_MASK, rShoupHi = rShoup >>> 32;
+
+        int end = offset + length;
+        int i = offset;
+        int bound = offset + SPECIES.loopBound(length);
+        for (; i < bound; i += SPECIES.length()) {
+            LongVector a = LongVector.fromArray(SPECIES, x, i);
+            LongVector b = LongVector.fromArray(SPECIES, y, i);
+
+            // high bits of a * b, see unsignedMultiplyHigh
+            LongVector aLo = a.and(LOW_MASK);
+            LongVector aHi = a.lanewise(VectorOperators.LSHR, 32);
+            LongVector bLo = b.and(LOW_MASK);
+            LongVector bHi = b.lanewise(VectorOperators.LSHR, 32);
+            LongVector mid = aHi.mul(bLo).add(aLo.mul(bLo).lanewise(VectorOperators.LSHR, 32));
+            LongVector mid2 = aLo.mul(bHi).add(mid.and(LOW_MASK));
+            LongVector abHi = aHi.mul(bHi).add(mid.lanewise(VectorOperators.LSHR, 32))
+                    .add(mid2.lanewise(VectorOperators.LSHR, 32));
+
+            // high bits of q * m, see Maths.montReduce
+            LongVector q = a.mul(b).mul(mInv);
+            LongVector qLo = q.and(LOW_MASK);
+            LongVector qHi = q.lanewise(VectorOperators.LSHR, 32);
+            mid = qHi.mul(mLo).add(qLo.mul(mLo).lanewise(VectorOperators.LSHR, 32));
+            mid2 = qLo.mul(mHi).add(mid.and(LOW_MASK));
+            LongVector qmHi = qHi.mul(mHi).add(mid.lanewise(VectorOperators.LSHR, 32))
+                    .add(mid2.lanewise(VectorOperators.LSHR, 32));
+
+            LongVector prod = abHi.sub(qmHi);
+            prod = prod.add(m, prod.lt(0));
+
+            // prod * r, see shoupMult
+            LongVector pLo = prod.and(LOW_MASK);
+            LongVector pHi = prod.lanewise(VectorOperators.LSHR, 32);
+            mid = pHi.mul(rShoupLo).add(pLo.mul(rShoupLo).lanewise(VectorOperators.LSHR, 32));
+            mid2 = pLo.mul(rShoupHi).add(mid.and(LOW_MASK));
+            LongVector shoupQ = pHi.mul(rShoupHi).add(mid.lanewise(VectorOperators.LSHR, 32))
+                    .add(mid2.lanewise(VectorOperators.LSHR, 32));
+            prod = prod.mul(r).sub(shoupQ.mul(m));
+            prod = prod.sub(m, prod.compare(VectorOperators.UNSIGNED_GE, m));
+
+            if (op == ADD) {
+                prod = LongVector.fromArray(SPECIES, dest, i).add(prod).sub(m);
+                prod = prod.add(m, prod.lt(0));
+            } else if (op == SUB) {
+                prod = LongVector.fromArray(SPECIES, dest, i).sub(prod);
+                prod = prod.add(m, prod.lt(0));
+            }
+            prod.intoArray(dest, i);
+        }
+
+        for (; i < end; i++) {
+            long prod = Maths.modMult(x[i], y[i], m, mInv, r2);
+            if (op == ADD)
+                dest[i] = Maths.modAdd(dest[i], prod, m);
+            else if (op == SUB)
+                dest[i] = Maths.modSub(dest[i], prod, m);
+            else
+                dest[i] = prod;
+        }
+    }
+
+    // dest = dest * w mod m, where wShoup = Maths.shoupPrecompute(w, m). Same
+    // kernel as Maths.shoupMult
+    static void mult_inplace(long[] dest, int offset, int length, long w, long wShoup, long m) {
+        LongVector wShoupVec = LongVector.broadcast(SPECIES, wShoup);
+
+        int end = offset + length;
+        int i = offset;
+        int bound = offset + SPECIES.loopBound(length);
+        for (; i < bound; i += SPECIES.length()) {
+            LongVector a = LongVector.fromArray(SPECIES, dest, i);
+            shoupMult(a, w, wShoupVec, m).intoArray(dest, i);
+        }
+
+        for (; i < end; i++)
+            dest[i] = Maths.shoupMult(dest[i], w, wShoup, m);
+    }
+
+    private static LongVector modAdd(LongVector a, LongVector b, long m) {
+        LongVector res = a.add(b).sub(m);
+        return res.add(m, res.lt(0));
+    }
+
+    private static LongVector modSub(LongVector a, LongVector b, long m) {
+        LongVector res = a.sub(b);
+        return res.add(m, res.lt(0));
+    }
+
+    private static LongVector shoupMult(LongVector a, long w, LongVector wShoup, long m) {
+        // see Maths.shoupMult
+        LongVector q = unsignedMultiplyHigh(a, wShoup);
+        LongVector res = a.mul(w).sub(q.mul(m));
+        return res.sub(m, res.compare(VectorOperators.UNSIGNED_GE, m));
+    }
+
+    // high 64 bits of the lane-wise unsigned products, from 32-bit halves since
+    // the Vector API has no widening multiplication for longs
+    private static LongVector unsignedMultiplyHigh(LongVector a, LongVector b) {
+        LongVector aLo = a.and(LOW_MASK);
+        LongVector aHi = a.lanewise(VectorOperators.LSHR, 32);
+        LongVector bLo = b.and(LOW_MASK);
+        LongVector bHi = b.lanewise(VectorOperators.LSHR, 32);
+
+        LongVector mid = aHi.mul(bLo).add(aLo.mul(bLo).lanewise(VectorOperators.LSHR, 32));
+        LongVector mid2 = aLo.mul(bHi).add(mid.and(LOW_MASK));
+
+        return aHi.mul(bHi).add(mid.lanewise(VectorOperators.LSHR, 32)).add(mid2.lanewise(VectorOperators.LSHR, 32));
+    }
+}
@@ -0,0 +1,221 @@
+package ckks;
+
+import java.util.Arrays;
+
+// Precomputed primes and roots of unity for common parameters, so that creating
+// a Context with them doesn't search at all. Every entry is exactly what
+// Context's deterministic search (without a seed) would find: the largest primes
+// of the given number of bits that are 1 modulo 2N, in descending order, and for
+// each the primitive 2N'th root of unity derived from the smallest quadratic
+// non-residue. Covers 2^10 to 2^14 slots with the bits the Context uses for 10
+// bits of integer precision and 30, 40 or 50 bits of fractional precision, with
+// the first PRIMES_PER_ENTRY primes of each size. That is not always enough (more
+// than 7 multiplications, or the temp primes of Context.tempPrimesCount, which
+// grow with the modulus), and Context.genPrime then searches on below the last
+// prime of the entry.
+final class PrimeTable {
+    // { N, bits }, then the primes, then their roots in the same order
+    private static final long[][] TABLE = {
+            { 2048, 30,
+                    1073692673L, 1073668097L, 1073655809L, 1073651713L, 1073643521L, 1073569793L, 1073508353L,
+                    1073479681L,
+                    77672603L, 742249336L, 680437621L, 567952629L, 245581008L, 315179105L, 308696463L, 762388463L },
+            { 2048, 31,
+                    2147389441L, 2147377153L, 2147352577L, 2147295233L, 2147217409L, 2147205121L, 2147196929L,
+                    2147082241L,
+                    447825397L, 1785079668L, 1543607367L, 978495977L, 724699338L, 1954481959L, 1801503842L,
+                    1389398465L },
+            { 2048, 40,
+                    1099511590913L, 1099511549953L, 1099511525377L, 1099511492609L, 1099511480321L, 1099511390209L,
+                    1099511369729L, 1099511259137L,
+                    207354324323L, 771127447213L, 855771050403L, 281070673475L, 62197469660L, 803145143300L,
+                    67781738404L, 734971854601L },
+            { 2048, 41,
+                    2199023251457L, 2199023210497L, 2199023190017L, 2199023136769L, 2199023104001L, 2199022927873L,
+                    2199022866433L, 2199022821377L,
+                    714464798103L, 119880928009L, 547252909035L, 572964565860L, 87616394606L, 2150363975282L,
+                    764475882911L, 2137295443915L },
+            { 2048, 50,
+                    1125899906826241L, 1125899906732033L, 1125899906629633L, 1125899906437121L, 1125899906424833L,
+                    1125899906260993L, 1125899906113537L, 1125899906080769L,
+                    765727830662934L, 296887765358158L, 836474191767503L, 17140346935471L, 192351722245600L,
+                    1047751607857741L, 129037191785810L, 359283751582104L },
+            { 2048, 51,
+                    2251799813640193L, 2251799813632001L, 2251799813554177L, 2251799813517313L, 2251799813480449L,
+                    2251799813472257L, 2251799813406721L, 2251799813398529L,
+                    291026812021792L, 1001208419794952L, 503168411736277L, 761436291866030L, 1767500729305500L,
+                    642525915867711L, 566878713828843L, 271177188373184L },
+            { 2048, 61,
+                    2305843009213616129L, 2305843009213554689L, 2305843009213501441L, 2305843009213489153L,
+                    2305843009213444097L, 2305843009213317121L, 2305843009213243393L, 2305843009213173761L,
+                    336264465743942051L, 106146708153485714L, 1334044830625335115L, 1861167057586964213L,
+                    1161211502067566795L, 2230032989056081504L, 1979136279856822961L, 1105182371629963415L },
+            { 4096, 30,
+                    1073692673L, 1073668097L, 1073651713L, 1073643521L, 1073569793L, 1073479681L, 1073430529L,
+                    1073299457L,
+                    510015274L, 1047115509L, 724005969L, 917716233L, 1067926601L, 371836615L, 341560326L, 1056364050L },
+            { 4096, 31,
+                    2147377153L, 2147352577L, 2147295233L, 2147205121L, 2147196929L, 2147082241L, 2147074049L,
+                    2146959361L,
+                    1202012506L, 760495213L, 920713129L, 2061834542L, 1321772815L, 1768998826L, 1917370277L,
+                    415600372L },
+            { 4096, 40,
+                    1099511480321L, 1099511390209L, 1099511259137L, 1099511111681L, 1099510890497L, 1099510824961L,
+                    1099510620161L, 1099510456321L,
+                    669014438329L, 333382190655L, 233398042184L, 679173971671L, 887093951000L, 854773653869L,
+                    989502440499L, 895199184565L },
+            { 4096, 41,
+                    2199023190017L, 2199022927873L, 2199022821377L, 2199022624769L, 2199022411777L, 2199022354433L,
+                    2199022133249L, 2199022043137L,
+                    707897838669L, 162724691648L, 746503624553L, 1641391632243L, 96156540740L, 1597027285109L,
+                    1914644995916L, 461877088290L },
+            { 4096, 50,
+                    1125899906826241L, 1125899906629633L, 1125899906424833L, 1125899906260993L, 1125899906113537L,
+                    1125899906080769L, 1125899906031617L, 1125899905884161L,
+                    1094367314627419L, 967006076000656L, 371347710277771L, 482085552875907L, 634445051345252L,
+                    688678700589173L, 156427156446428L, 905634262862559L },
+            { 4096, 51,
+                    2251799813554177L, 2251799813480449L, 2251799813472257L, 2251799813406721L, 2251799813398529L,
+                    2251799813349377L, 2251799813283841L, 2251799813038081L,
+                    1742162739775129L, 113012996189754L, 357862185742882L, 1707505972247029L, 1237140786228114L,
+                    387108392164926L, 2140505041862536L, 899333459223685L },
+            { 4096, 61,
+                    2305843009213554689L, 2305843009213489153L, 2305843009213317121L, 2305843009213243393L,
+                    2305843009213145089L, 2305843009213120513L, 2305843009212997633L, 2305843009212694529L,
+                    334526349397148170L, 721971764505941021L, 13243613565263507L, 1338152599292777427L,
+                    287729320183848198L, 1447766603719678700L, 2125894699876032089L, 801301777447158231L },
+            { 8192, 30,
+                    1073692673L, 1073643521L, 1073479681L, 1073430529L, 1073299457L, 1073233921L, 1073184769L,
+                    1073135617L,
+                    1035643497L, 235155491L, 87457091L, 763650354L, 286201539L, 1028406055L, 19861792L, 196716077L },
+            { 8192, 31,
+                    2147352577L, 2147205121L, 2147074049L, 2146959361L, 2146713601L, 2146418689L, 2146336769L,
+                    2146091009L,
+                    772388167L, 709811861L, 1004123879L, 1962630227L, 2050654798L, 139051064L, 30085165L, 563433298L },
+            { 8192, 40,
+                    1099511480321L, 1099510890497L, 1099510824961L, 1099510054913L, 1099510005761L, 1099508924417L,
+                    1099508760577L, 1099508531201L,
+                    456294246567L, 665074339637L, 343818449024L, 572402708653L, 750401978974L, 465015193284L,
+                    1062364740315L, 73130189380L },
+            { 8192, 41,
+                    2199023190017L, 2199022927873L, 2199022354433L, 2199022043137L, 2199022010369L, 2199021961217L,
+                    2199021862913L, 2199021813761L,
+                    1245024710537L, 989719528226L, 852924718070L, 1516983029591L, 983717022475L, 1477215546011L,
+                    1112757643794L, 1606822535720L },
+            { 8192, 50,
+                    1125899906826241L, 1125899906629633L, 1125899905744897L, 1125899905351681L, 1125899905220609L,
+                    1125899904679937L, 1125899903991809L, 1125899903827969L,
+                    971709613313032L, 1096684567043902L, 340368873960073L, 684195787594020L, 659201244527428L,
+                    951222983339009L, 289445935094760L, 988397239582577L },
+            { 8192, 51,
+                    2251799813554177L, 2251799813472257L, 2251799813406721L, 2251799812980737L, 2251799812784129L,
+                    2251799812292609L, 2251799811735553L, 2251799811604481L,
+                    1645362752154447L, 1541033361238540L, 804188645371965L, 2148850080236624L, 1696300044902200L,
+                    1260561056214201L, 1891967505013095L, 1219160520110871L },
+            { 8192, 61,
+                    2305843009213317121L, 2305843009213120513L, 2305843009212694529L, 2305843009212399617L,
+                    2305843009211662337L, 2305843009211596801L, 2305843009211400193L, 2305843009210580993L,
+                    1187132827279672845L, 753478288701480417L, 717492273700781398L, 1965831349000139179L,
+                    2188074825493578002L, 1184487168426089369L, 395215708149128273L, 241993652537061162L },
+            { 16384, 30,
+                    1073643521L, 1073479681L, 1073184769L, 1073053697L, 1072857089L, 1072496641L, 1071513601L,
+                    1071415297L,
+                    269685106L, 686503203L, 1008090103L, 248096358L, 782070568L, 737948809L, 219500032L, 893453818L },
+            { 16384, 31,
+                    2147352577L, 2146959361L, 2146336769L, 2146041857L, 2145976321L, 2144960513L, 2144894977L,
+                    2144796673L,
+                    214822318L, 325882060L, 1772766431L, 1582793888L, 1789581462L, 1759992936L, 572639704L,
+                    1163741713L },
+            { 16384, 40,
+                    1099510054913L, 1099508121601L, 1099507695617L, 1099506515969L, 1099506352129L, 1099505827841L,
+                    1099504549889L, 1099503894529L,
+                    81696219706L, 106484996498L, 720655838054L, 857229121229L, 27091360873L, 489874553099L,
+                    846767074698L, 116157964823L },
+            { 16384, 41,
+                    2199023190017L, 2199022927873L, 2199022043137L, 2199022010369L, 2199021813761L, 2199021649921L,
+                    2199021617153L, 2199021518849L,
+                    2076876186532L, 435777854436L, 1505357227457L, 890863108550L, 1905617837806L, 457387540571L,
+                    2068014225683L, 1940004735965L },
+            { 16384, 50,
+                    1125899904679937L, 1125899903991809L, 1125899903827969L, 1125899903795201L, 1125899903500289L,
+                    1125899903107073L, 1125899902124033L, 1125899901665281L,
+                    974161070679573L, 786116718131564L, 432835085894465L, 683079667330816L, 409516087617087L,
+                    727349454979619L, 210412504290979L, 1073024457616524L },
+            { 16384, 51,
+                    2251799813554177L, 2251799811391489L, 2251799810670593L, 2251799810605057L, 2251799809916929L,
+                    2251799809884161L, 2251799809785857L, 2251799809392641L,
+                    1435784749104756L, 1687006441103454L, 443603163455405L, 554186781381008L, 1287504955926357L,
+                    1068889076591249L, 1058740044740860L, 2008265006247839L },
+            { 16384, 61,
+                    2305843009211662337L, 2305843009211596801L, 2305843009211400193L, 2305843009210580993L,
+                    2305843009210515457L, 2305843009210023937L, 2305843009208713217L, 2305843009208123393L,
+                    2046744674361858571L, 144043840689699904L, 1099332825839878591L, 792782292148181963L,
+                    1771348366587863572L, 466810342254390719L, 446877219784863302L, 269439252984874262L },
+            { 32768, 30,
+                    1073479681L, 1072496641L, 1071513601L, 1070727169L, 1069219841L, 1068564481L, 1068433409L,
+                    1068236801L,
+                    31849551L, 238573482L, 295684541L, 257997683L, 193971320L, 986867018L, 414980850L, 141225606L },
+            { 32768, 31,
+                    2147352577L, 2146959361L, 2146041857L, 2145976321L, 2144796673L, 2144468993L, 2144010241L,
+                    2143092737L,
+                    1463237953L, 850847155L, 1639487244L, 1861286377L, 1875690341L, 1489905356L, 564550723L,
+                    359939335L },
+            { 32768, 40,
+                    1099510054913L, 1099507695617L, 1099506515969L, 1099504549889L, 1099503894529L, 1099503370241L,
+                    1099502714881L, 1099502518273L,
+                    993612494692L, 976415798505L, 683332016345L, 218774694588L, 301368794023L, 463312119360L,
+                    1049847818492L, 1026929040667L },
+            { 32768, 41,
+                    2199023190017L, 2199022927873L, 2199022010369L, 2199021813761L, 2199021617153L, 2199021355009L,
+                    2199021223937L, 2199020634113L,
+                    362897926560L, 2110617164179L, 721615668845L, 1627872415060L, 802296619225L, 309045637504L,
+                    817146258058L, 1677613623173L },
+            { 32768, 50,
+                    1125899904679937L, 1125899903827969L, 1125899903500289L, 1125899903107073L, 1125899902124033L,
+                    1125899901665281L, 1125899899174913L, 1125899896160257L,
+                    786452574127201L, 754257174057712L, 992208329894776L, 92406050206634L, 10487959555171L,
+                    81387231536149L, 394728779549670L, 718142343214705L },
+            { 32768, 51,
+                    2251799813554177L, 2251799811391489L, 2251799810670593L, 2251799810605057L, 2251799809884161L,
+                    2251799809294337L, 2251799807131649L, 2251799806345217L,
+                    1192402922411010L, 244043381613997L, 1052136305358425L, 81820343605740L, 2245835332929963L,
+                    135273699952584L, 1152440507540144L, 637059013085497L },
+            { 32768, 61,
+                    2305843009211662337L, 2305843009211596801L, 2305843009211400193L, 2305843009210023937L,
+                    2305843009208713217L, 2305843009208123393L, 2305843009207468033L, 2305843009202159617L,
+                    1964969423657051386L, 572539251920920660L, 683835578875586969L, 1663660957795839475L,
+                    1607296046385400743L, 1396878402264238088L, 548219116025750744L, 1357367604270770165L },
+    };
+
+    private static final int PRIMES_PER_ENTRY = 8;
+
+    static {
+        // primes and root index into the entries by PRIMES_PER_ENTRY
+        for (long[] entry : TABLE)
+            if (entry.length != 2 + 2 * PRIMES_PER_ENTRY)
+                throw new IllegalStateException("PrimeTable entry for N= " + entry[0] + ", bits= " + entry[1]
+                        + " has " + (entry.length - 2) + " values instead of " + 2 * PRIMES_PER_ENTRY);
+    }
+
+    private PrimeTable() {
+    }
+
+    // the precomputed primes of the given number of bits for polynomials of degree
+    // N, in descending order. Empty if there are none
+    static long[] primes(int N, int bits) {
+        for (long[] entry : TABLE)
+            if (entry[0] == N && entry[1] == bits)
+                return Arrays.copyOfRange(entry, 2, 2 + PRIMES_PER_ENTRY);
+        return new long[0];
+    }
+
+    // the precomputed primitive 2N'th root of unity modulo prime, 0 if there is none
+    static long root(int N, long prime) {
+        for (long[] entry : TABLE)
+            if (entry[0] == N)
+                for (int i = 0; i < PRIMES_PER_ENTRY; i++)
+                    if (entry[2 + i] == prime)
+                        return entry[2 + PRIMES_PER_ENTRY + i];
+        return 0;
+    }
+}
@@ -1,9 +1,20 @@
 package ckks;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
 public class PublicKeys {
     private Polynomial b, a;
 
-    long[][] relinKeyB, relinKeyA;
+    // in NTT form, with the temp primes' limbs following the regular primes' limbs,
+    // stored one after the other as in Polynomial
+    PolynomialStorage relinKeyB, relinKeyA;
+
+    // the key switching keys of the Galois automorphisms X -> X^galoisElt, as
+    // { b, a } by Galois element, stored like the relinearization keys. See
+    // KeyGenerator.genRotationKeys. Sorted so that serialize is stable, and safe to
+    // read from evaluators on other threads while keys are added
+    final ConcurrentSkipListMap<Integer, PolynomialStorage[]> galoisKeys = new ConcurrentSkipListMap<>();
 
     public PublicKeys() {
     }
@@ -13,12 +24,34 @@ public class PublicKeys {
         this.a = a;
     }
 
-    public void setRelinKeys(long[][] relinKeyB,
-            long[][] relinKeyA) {
+    public void setRelinKeys(long[] relinKeyB,
+            long[] relinKeyA) {
+        setRelinKeys(new HeapStorage(relinKeyB), new HeapStorage(relinKeyA));
+    }
+
+    void setRelinKeys(PolynomialStorage relinKeyB,
+            PolynomialStorage relinKeyA) {
         this.relinKeyB = relinKeyB;
         this.relinKeyA = relinKeyA;
     }
 
+    public void setGaloisKeys(int galoisElt, long[] galoisKeyB, long[] galoisKeyA) {
+        setGaloisKeys(galoisElt, new HeapStorage(galoisKeyB), new HeapStorage(galoisKeyA));
+    }
+
+    void setGaloisKeys(int galoisElt, PolynomialStorage galoisKeyB, PolynomialStorage galoisKeyA) {
+        galoisKeys.put(galoisElt, new PolynomialStorage[] { galoisKeyB, galoisKeyA });
+    }
+
+    // { b, a }, or null if there is no key for galoisElt
+    PolynomialStorage[] getGaloisKeys(int galoisElt) {
+        return galoisKeys.get(galoisElt);
+    }
+
+    public boolean hasGaloisKeys(int galoisElt) {
+        return galoisKeys.containsKey(galoisElt);
+    }
+
     public Polynomial getB() {
         return b;
     }
@@ -27,42 +60,65 @@ public class PublicKeys {
         return a;
     }
 
-    public long[][] getRelinKeyB() {
-        return relinKeyB;
+    // only for keys on the heap, see OffHeapStorage
+    public long[] getRelinKeyB() {
+        return heapArray(relinKeyB);
     }
 
-    public long[][] getRelinKeyA() {
-        return relinKeyA;
+    public long[] getRelinKeyA() {
+        return heapArray(relinKeyA);
+    }
+
+    private static long[] heapArray(PolynomialStorage relinKey) {
+        long[] res = relinKey.array();
+        if (res == null)
+            throw new IllegalStateException("Relinearization key is stored off-heap.");
+        return res;
     }
 
     public long[] serialize() {
         long[] bSerialized = b.serialize();
         long[] aSerialized = a.serialize();
 
-        long[] res = new long[1 + bSerialized.length + 1 + aSerialized.length + 2
-                + relinKeyA.length * relinKeyA[0].length + 2 + relinKeyB.length * relinKeyB[0].length];
+        int N = b.getN();
+
+        int galoisKeysLength = 1;
+        for (PolynomialStorage[] galoisKey : galoisKeys.values())
+            galoisKeysLength += 1 + 2 + galoisKey[0].length() + 2 + galoisKey[1].length();
+
+        long[] res = new long[1 + bSerialized.length + 1 + aSerialized.length + 2 + relinKeyA.length() + 2
+                + relinKeyB.length() + galoisKeysLength];
 
         int idx = 0;
 
         res[idx++] = bSerialized.length;
-        for (int i = 0; i < bSerialized.length; i++)
-            res[idx++] = bSerialized[i];
+        System.arraycopy(bSerialized, 0, res, idx, bSerialized.length);
+        idx += bSerialized.length;
 
         res[idx++] = aSerialized.length;
-        for (int i = 0; i < aSerialized.length; i++)
-            res[idx++] = aSerialized[i];
-
-        res[idx++] = relinKeyB.length;
-        res[idx++] = relinKeyB[0].length;
-        for (int i = 0; i < relinKeyB.length; i++)
-            for (int j = 0; j < relinKeyB[0].length; j++)
-                res[idx++] = relinKeyB[i][j];
-
-        res[idx++] = relinKeyA.length;
-        res[idx++] = relinKeyA[0].length;
-        for (int i = 0; i < relinKeyA.length; i++)
-            for (int j = 0; j < relinKeyA[0].length; j++)
-                res[idx++] = relinKeyA[i][j];
+        System.arraycopy(aSerialized, 0, res, idx, aSerialized.length);
+        idx += aSerialized.length;
+
+        res[idx++] = relinKeyB.length() / N;
+        res[idx++] = N;
+        relinKeyB.copyTo(0, res, idx, relinKeyB.length());
+        idx += relinKeyB.length();
+
+        res[idx++] = relinKeyA.length() / N;
+        res[idx++] = N;
+        relinKeyA.copyTo(0, res, idx, relinKeyA.length());
+        idx += relinKeyA.length();
+
+        res[idx++] = galoisKeys.size();
+        for (Map.Entry<Integer, PolynomialStorage[]> entry : galoisKeys.entrySet()) {
+            res[idx++] = entry.getKey();
+            for (PolynomialStorage galoisKey : entry.getValue()) {
+                res[idx++] = galoisKey.length() / N;
+                res[idx++] = N;
+                galoisKey.copyTo(0, res, idx, galoisKey.length());
+                idx += galoisKey.length();
+            }
+        }
 
         return res;
     }
@@ -71,25 +127,42 @@ public class PublicKeys {
         int idx = 0;
 
         long[] bSerialized = new long[(int) serialization[idx++]];
-        for (int i = 0; i < bSerialized.length; i++)
-            bSerialized[i] = serialization[idx++];
+        System.arraycopy(serialization, idx, bSerialized, 0, bSerialized.length);
+        idx += bSerialized.length;
         b = new Polynomial();
         b.deserialize(context, bSerialized);
 
         long[] aSerialized = new long[(int) serialization[idx++]];
-        for (int i = 0; i < aSerialized.length; i++)
-            aSerialized[i] = serialization[idx++];
+        System.arraycopy(serialization, idx, aSerialized, 0, aSerialized.length);
+        idx += aSerialized.length;
         a = new Polynomial();
         a.deserialize(context, aSerialized);
 
-        relinKeyB = new long[(int) serialization[idx++]][(int) serialization[idx++]];
-        for (int i = 0; i < relinKeyB.length; i++)
-            for (int j = 0; j < relinKeyB[0].length; j++)
-                relinKeyB[i][j] = serialization[idx++];
+        long[] relinKeyBValues = new long[(int) serialization[idx++] * (int) serialization[idx++]];
+        System.arraycopy(serialization, idx, relinKeyBValues, 0, relinKeyBValues.length);
+        idx += relinKeyBValues.length;
+
+        long[] relinKeyAValues = new long[(int) serialization[idx++] * (int) serialization[idx++]];
+        System.arraycopy(serialization, idx, relinKeyAValues, 0, relinKeyAValues.length);
+        idx += relinKeyAValues.length;
+
+        setRelinKeys(relinKeyBValues, relinKeyAValues);
+
+        // serializations without Galois keys end here
+        galoisKeys.clear();
+        int galoisKeysCount = idx < serialization.length ? (int) serialization[idx++] : 0;
+        for (int i = 0; i < galoisKeysCount; i++) {
+            int galoisElt = (int) serialization[idx++];
+
+            long[] galoisKeyB = new long[(int) serialization[idx++] * (int) serialization[idx++]];
+            System.arraycopy(serialization, idx, galoisKeyB, 0, galoisKeyB.length);
+            idx += galoisKeyB.length;
+
+            long[] galoisKeyA = new long[(int) serialization[idx++] * (int) serialization[idx++]];
+            System.arraycopy(serialization, idx, galoisKeyA, 0, galoisKeyA.length);
+            idx += galoisKeyA.length;
 
-        relinKeyA = new long[(int) serialization[idx++]][(int) serialization[idx++]];
-        for (int i = 0; i < relinKeyA.length; i++)
-            for (int j = 0; j < relinKeyA[0].length; j++)
-                relinKeyA[i][j] = serialization[idx++];
+            setGaloisKeys(galoisElt, galoisKeyB, galoisKeyA);
+        }
     }
 }
@@ -0,0 +1,35 @@
+package ckks;
+
+import java.util.Arrays;
+
+// Checks that Contexts are reproducible: the same parameters give the same primes
+// and roots, with or without a seed, and different seeds give different ones
+public class ContextSeedTest {
+    private static final int SLOTS = 256;
+
+    public static void main(String[] args) {
+        long[] unseeded = new Context(SLOTS, 3, 10, 30).serialize();
+        check(Arrays.equals(unseeded, new Context(SLOTS, 3, 10, 30).serialize()), "unseeded contexts differ");
+
+        Context seeded = new Context(SLOTS, 3, 10, 30, 42);
+        check(Arrays.equals(seeded.serialize(), new Context(SLOTS, 3, 10, 30, 42).serialize()),
+                "contexts with the same seed differ");
+        check(!Arrays.equals(seeded.serialize(), new Context(SLOTS, 3, 10, 30, 7).serialize()),
+                "contexts with different seeds are the same");
+        check(!Arrays.equals(seeded.serialize(), unseeded), "the seeded context is the unseeded one");
+
+        // parameters beyond PrimeTable, so that the primes come from the search
+        check(Arrays.equals(new Context(SLOTS, 2, 12, 36).serialize(), new Context(SLOTS, 2, 12, 36).serialize()),
+                "unseeded contexts without precomputed primes differ");
+
+        for (long prime : seeded.primes)
+            check(Maths.isPrime(prime) && prime % (4 * SLOTS) == 1, prime + " is not a prime 1 mod 2N");
+
+        System.out.println("ContextSeedTest passed");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,103 @@
+package ckks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+// Checks that a context loaded from a snapshot is the saved one and works, and
+// that bad snapshots are rejected with an IOException
+public class ContextSnapshotTest {
+    private static final int SLOTS = 128;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("ckks-snapshot");
+        try {
+            Path path = dir.resolve("context.snap");
+            roundTrips(path);
+            rejectsOtherVersions(path);
+            rejectsTruncatedFiles(path);
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator)
+                    Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+
+        System.out.println("ContextSnapshotTest passed");
+    }
+
+    private static void roundTrips(Path path) throws IOException {
+        Context context = new Context(SLOTS, 2, 10, 30);
+        context.saveSnapshot(path);
+        Context loaded = Context.loadSnapshot(path);
+
+        check(Arrays.equals(context.serialize(), loaded.serialize()), "the loaded context differs");
+
+        KeyGenerator keyGenerator = new KeyGenerator(loaded);
+        Encoder encoder = new Encoder(loaded);
+        Encryptor encryptor = new Encryptor(loaded, keyGenerator.getPublicKeys());
+        Decryptor decryptor = new Decryptor(keyGenerator.getSecretKey());
+        Evaluator evaluator = new Evaluator(loaded, keyGenerator.getPublicKeys());
+
+        Complex[] values = new Complex[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+            values[i] = new Complex(0.5 + 0.001 * i, 0.25);
+
+        Plaintext p = new Plaintext(loaded);
+        encoder.encode(values, p);
+        Ciphertext c = new Ciphertext(loaded);
+        encryptor.encrypt(p, c);
+
+        Ciphertext squared = evaluator.mult(c, c);
+        evaluator.relinearize_inplace(squared);
+        evaluator.rescale_inplace(squared);
+
+        decryptor.decrypt(squared, p);
+        Complex[] res = encoder.decode(p);
+        for (int i = 0; i < SLOTS; i++) {
+            Complex expected = values[i].mult(values[i]);
+            check(res[i].sub(expected).norm() < 1e-4, "slot " + i + " is " + res[i] + ", expected " + expected);
+        }
+    }
+
+    // the second long of the header is the version
+    private static void rejectsOtherVersions(Path path) throws IOException {
+        new Context(SLOTS, 1, 10, 30).saveSnapshot(path);
+
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putLong(Long.BYTES, ContextSnapshot.VERSION + 1);
+        Files.write(path, bytes);
+
+        expectRejected(path, "Unsupported context snapshot version");
+    }
+
+    private static void rejectsTruncatedFiles(Path path) throws IOException {
+        new Context(SLOTS, 1, 10, 30).saveSnapshot(path);
+
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length / 2 / Long.BYTES * Long.BYTES));
+        expectRejected(path, "Truncated context snapshot");
+
+        Files.write(path, Arrays.copyOf(bytes, 12));
+        expectRejected(path, "Not a context snapshot");
+    }
+
+    private static void expectRejected(Path path, String message) {
+        try {
+            Context.loadSnapshot(path);
+        } catch (IOException e) {
+            check(e.getMessage().startsWith(message), "unexpected error: " + e.getMessage());
+            return;
+        }
+        throw new AssertionError("loaded a bad snapshot, expected: " + message);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
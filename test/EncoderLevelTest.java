@@ -0,0 +1,81 @@
+package ckks;
+
+// Checks encoding at a chosen level and scale: the plaintext has only the limbs up
+// to the level, and works as is with a ciphertext at that level and scale
+public class EncoderLevelTest {
+    private static final int SLOTS = 256;
+
+    public static void main(String[] args) {
+        Context context = new Context(SLOTS, 3, 10, 30);
+        KeyGenerator keyGenerator = new KeyGenerator(context);
+        Encoder encoder = new Encoder(context);
+        Encryptor encryptor = new Encryptor(context, keyGenerator.getPublicKeys());
+        Decryptor decryptor = new Decryptor(keyGenerator.getSecretKey());
+        Evaluator evaluator = new Evaluator(context, keyGenerator.getPublicKeys());
+
+        double[] x = new double[SLOTS], y = new double[SLOTS];
+        for (int i = 0; i < SLOTS; i++) {
+            x[i] = 0.5 + i * 0.001;
+            y[i] = 1 - i * 0.002;
+        }
+
+        Plaintext p = new Plaintext(context);
+        encoder.encode(x, p);
+        Ciphertext c = new Ciphertext(context);
+        encryptor.encrypt(p, c);
+
+        // a level below the top, and a scale that isn't the default one anymore
+        Ciphertext squared = evaluator.mult(c, c);
+        evaluator.relinearize_inplace(squared);
+        evaluator.rescale_inplace(squared);
+
+        Plaintext weights = new Plaintext(context);
+        encoder.encode(y, squared.getLevel(), squared.getScale(), weights);
+        check(weights.getLevel() == squared.getLevel(), "plaintext at level " + weights.getLevel());
+        check(weights.getScale() == squared.getScale(), "plaintext at scale " + weights.getScale());
+        check(weights.getM().toArray().length == (squared.getLevel() + 1) * 2 * SLOTS,
+                "plaintext with limbs beyond its level");
+
+        Ciphertext sum = evaluator.add(squared, weights);
+        Ciphertext product = evaluator.mult(squared, weights);
+
+        decryptor.decrypt(sum, p);
+        double[] sumRes = encoder.decodeReal(p);
+        decryptor.decrypt(product, p);
+        double[] productRes = encoder.decodeReal(p);
+        for (int i = 0; i < SLOTS; i++) {
+            double expected = x[i] * x[i] + y[i];
+            check(Math.abs(sumRes[i] - expected) < 1e-3, "sum slot " + i + " is " + sumRes[i] + ", expected "
+                    + expected);
+            expected = x[i] * x[i] * y[i];
+            check(Math.abs(productRes[i] - expected) < 1e-3, "product slot " + i + " is " + productRes[i]
+                    + ", expected " + expected);
+        }
+
+        // the complex path, at the lowest level and a scale of its own
+        Complex[] z = new Complex[4];
+        for (int i = 0; i < z.length; i++)
+            z[i] = new Complex(i, 1);
+        encoder.encode(z, 0, 1 << 20, p);
+        check(p.getLevel() == 0 && p.getScale() == 1 << 20, "complex plaintext at the wrong level or scale");
+        Complex[] zRes = encoder.decode(p);
+        for (int i = 0; i < SLOTS; i++) {
+            Complex expected = i < z.length ? z[i] : new Complex(0, 0);
+            check(zRes[i].sub(expected).norm() < 1e-3, "complex slot " + i + " is " + zRes[i] + ", expected "
+                    + expected);
+        }
+
+        try {
+            encoder.encode(x, context.topLevel + 1, context.defaultScale, p);
+            throw new AssertionError("encoded above the top level");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        System.out.println("EncoderLevelTest passed");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
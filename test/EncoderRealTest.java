@@ -0,0 +1,64 @@
+package ckks;
+
+import java.util.Random;
+
+// Checks the real encode and decode of Encoder, which use half-size transforms,
+// against the values and against the complex path
+public class EncoderRealTest {
+    public static void main(String[] args) {
+        for (int slots : new int[] { 1, 2, 8, 256 })
+            roundTrips(slots);
+
+        System.out.println("EncoderRealTest passed");
+    }
+
+    private static void roundTrips(int slots) {
+        Context context = new Context(slots, 2, 10, 30);
+        Encoder encoder = new Encoder(context);
+        Random rnd = new Random(slots);
+
+        double[] values = new double[slots];
+        Complex[] complexValues = new Complex[slots];
+        for (int i = 0; i < slots; i++) {
+            values[i] = rnd.nextDouble() * 4 - 2;
+            complexValues[i] = new Complex(rnd.nextDouble() - 0.5, rnd.nextDouble() - 0.5);
+        }
+
+        // real values decode to themselves, without imaginary parts
+        Plaintext p = new Plaintext(context);
+        encoder.encode(values, p);
+        double[] res = new double[slots];
+        encoder.decodeReal(p, res);
+        Complex[] complexRes = encoder.decode(p);
+        for (int i = 0; i < slots; i++) {
+            check(Math.abs(res[i] - values[i]) < 1e-6, slots + " slots: slot " + i + " is " + res[i] + ", expected "
+                    + values[i]);
+            check(Math.abs(complexRes[i].re - values[i]) < 1e-6 && Math.abs(complexRes[i].im) < 1e-6,
+                    slots + " slots: complex slot " + i + " is " + complexRes[i] + ", expected " + values[i]);
+        }
+
+        // the real parts of complex values
+        encoder.encode(complexValues, p);
+        res = encoder.decodeReal(p);
+        complexRes = encoder.decode(p);
+        for (int i = 0; i < slots; i++)
+            check(Math.abs(res[i] - complexRes[i].re) < 1e-9, slots + " slots: real part of slot " + i + " is "
+                    + res[i] + ", expected " + complexRes[i].re);
+
+        // fewer values than slots are padded with zeros
+        double[] fewer = new double[slots / 2 + 1];
+        System.arraycopy(values, 0, fewer, 0, fewer.length);
+        encoder.encode(fewer, p);
+        res = encoder.decodeReal(p);
+        for (int i = 0; i < slots; i++) {
+            double expected = i < fewer.length ? fewer[i] : 0;
+            check(Math.abs(res[i] - expected) < 1e-6, slots + " slots: padded slot " + i + " is " + res[i]
+                    + ", expected " + expected);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,59 @@
+package ckks;
+
+import java.lang.management.ManagementFactory;
+
+// Checks that a steady-state multiply, relinearize and rescale allocates nothing
+// once the per-thread scratch and the destination's storage are in place. Run
+// with --add-modules jdk.incubator.vector so that the Vector API backend is on,
+// see README
+public class EvaluatorAllocationTest {
+    private static final int WARMUP = 2000;
+
+    private static final int ITERATIONS = 200;
+
+    public static void main(String[] args) {
+        if (!Polynomial.vectorized)
+            System.out.println("warning: the Vector API backend is off, only the scalar kernels are tested");
+
+        Context context = new Context(1024, 3, 10, 30);
+        KeyGenerator keyGenerator = new KeyGenerator(context);
+        Encoder encoder = new Encoder(context);
+        Encryptor encryptor = new Encryptor(context, keyGenerator.getPublicKeys());
+        Evaluator evaluator = new Evaluator(context, keyGenerator.getPublicKeys());
+
+        Complex[] values = new Complex[context.slots];
+        for (int i = 0; i < values.length; i++)
+            values[i] = new Complex(Math.cos(i));
+
+        Plaintext plaintext = new Plaintext(context);
+        encoder.encode(values, plaintext);
+        Ciphertext a = new Ciphertext(context);
+        encryptor.encrypt(plaintext, a);
+        Ciphertext b = new Ciphertext(a);
+        Ciphertext dest = new Ciphertext(context);
+
+        // past the JIT's compilation of the kernels
+        for (int i = 0; i < WARMUP; i++)
+            step(evaluator, a, b, dest);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++)
+            step(evaluator, a, b, dest);
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        if (allocated > 0)
+            throw new AssertionError("multiply, relinearize and rescale allocated " + allocated / ITERATIONS
+                    + " bytes per step");
+
+        System.out.println("EvaluatorAllocationTest passed, vectorized " + Polynomial.vectorized);
+    }
+
+    private static void step(Evaluator evaluator, Ciphertext a, Ciphertext b, Ciphertext dest) {
+        evaluator.mult(a, b, dest);
+        evaluator.relinearize_inplace(dest);
+        evaluator.rescale_inplace(dest);
+    }
+}
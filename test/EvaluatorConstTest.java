@@ -0,0 +1,123 @@
+package ckks;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+// Checks the operations with real constants of the Evaluator, which reduce the
+// constant rounded at the scale per prime, without an encoding
+public class EvaluatorConstTest {
+    private static final int SLOTS = 64;
+
+    public static void main(String[] args) {
+        reducesDoublesBeyondLongRange();
+        multipliesByConstantBeyondLongRange();
+        addsConstantAtSquaredScale();
+
+        System.out.println("EvaluatorConstTest passed");
+    }
+
+    private static void reducesDoublesBeyondLongRange() {
+        Context context = new Context(SLOTS, 2, 10, 50);
+
+        double[] values = { 0x1p63, -0x1p63, 0x1p80 * 3, -12345.0 * 0x1p70, 0x1.fffffffffffffp1023, 42, -7 };
+        for (double value : values) {
+            for (long prime : context.primes) {
+                long expected = new BigDecimal(value).toBigIntegerExact().mod(BigInteger.valueOf(prime)).longValue();
+                check(Maths.mod(value, prime) == expected, value + " mod " + prime);
+            }
+        }
+    }
+
+    // 10000 * 2^50 is beyond 2^63
+    private static void multipliesByConstantBeyondLongRange() {
+        Context context = new Context(SLOTS, 2, 10, 50);
+        Fixture f = new Fixture(context);
+
+        double constant = 10000;
+        check(constant * context.defaultScale >= 0x1p63, "constant times scale within the range of a long");
+
+        Ciphertext c = f.evaluator.multConst(f.encrypt(), constant);
+        f.evaluator.rescale_inplace(c);
+
+        double[] expected = new double[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+            expected[i] = f.values[i] * constant;
+
+        f.checkDecrypts(c, expected, 1e-6, "multConst");
+    }
+
+    // a degree 2 ciphertext has the squared scale 2^80, and so has a degree 1 one
+    // that isn't rescaled after a multiplication
+    private static void addsConstantAtSquaredScale() {
+        Context context = new Context(SLOTS, 2, 10, 40);
+        Fixture f = new Fixture(context);
+        Ciphertext c = f.encrypt();
+
+        Ciphertext squared = f.evaluator.mult(c, c);
+        check(!squared.isLinear(), "the product is relinearized");
+        f.evaluator.addConst_inplace(squared, 0.25);
+        f.evaluator.relinearize_inplace(squared);
+        f.evaluator.rescale_inplace(squared);
+
+        double[] expected = new double[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+            expected[i] = f.values[i] * f.values[i] + 0.25;
+
+        f.checkDecrypts(squared, expected, 1e-6, "addConst to degree 2");
+
+        Ciphertext product = f.evaluator.multConst(c, 3);
+        f.evaluator.addConst_inplace(product, -0.5);
+        f.evaluator.rescale_inplace(product);
+
+        for (int i = 0; i < SLOTS; i++)
+            expected[i] = f.values[i] * 3 - 0.5;
+
+        f.checkDecrypts(product, expected, 1e-6, "addConst before rescale");
+    }
+
+    private static final class Fixture {
+        final Encoder encoder;
+        final Encryptor encryptor;
+        final Decryptor decryptor;
+        final Evaluator evaluator;
+        final Context context;
+        final double[] values = new double[SLOTS];
+
+        Fixture(Context context) {
+            this.context = context;
+
+            KeyGenerator keyGenerator = new KeyGenerator(context);
+            encoder = new Encoder(context);
+            encryptor = new Encryptor(context, keyGenerator.getPublicKeys());
+            decryptor = new Decryptor(keyGenerator.getSecretKey());
+            evaluator = new Evaluator(context, keyGenerator.getPublicKeys());
+
+            for (int i = 0; i < SLOTS; i++)
+                values[i] = 0.05 * Math.sin(i);
+        }
+
+        Ciphertext encrypt() {
+            Plaintext p = new Plaintext(context);
+            encoder.encode(values, p);
+
+            Ciphertext res = new Ciphertext(context);
+            encryptor.encrypt(p, res);
+            return res;
+        }
+
+        void checkDecrypts(Ciphertext c, double[] expected, double tolerance, String what) {
+            Plaintext p = new Plaintext(context);
+            decryptor.decrypt(c, p);
+            double[] res = encoder.decodeReal(p);
+
+            for (int i = 0; i < SLOTS; i++)
+                check(Math.abs(res[i] - expected[i]) < tolerance,
+                        what + ": slot " + i + " is " + res[i] + ", expected " + expected[i]);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,128 @@
+package ckks;
+
+import java.util.Arrays;
+
+// Checks the Galois automorphisms of the Evaluator against the same rotations
+// and conjugations of the plaintext values
+public class EvaluatorRotationTest {
+    private static final int SLOTS = 128;
+
+    private static final int[] STEPS = { 1, 2, -1, 5, SLOTS / 2, SLOTS - 1 };
+
+    public static void main(String[] args) {
+        Context context = new Context(SLOTS, 3, 10, 30);
+        KeyGenerator keyGenerator = new KeyGenerator(context);
+        keyGenerator.genRotationKeys(STEPS);
+        keyGenerator.genConjugationKey();
+
+        Encoder encoder = new Encoder(context);
+        Encryptor encryptor = new Encryptor(context, keyGenerator.getPublicKeys());
+        Decryptor decryptor = new Decryptor(keyGenerator.getSecretKey());
+        Evaluator evaluator = new Evaluator(context, keyGenerator.getPublicKeys());
+
+        Complex[] values = new Complex[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+            values[i] = new Complex(Math.cos(i * 0.3), Math.sin(i * 0.7) * 0.5);
+
+        Plaintext p = new Plaintext(context);
+        encoder.encode(values, p);
+        Ciphertext c = new Ciphertext(context);
+        encryptor.encrypt(p, c);
+
+        Ciphertext squared = evaluator.mult(c, c);
+        Complex[] squares = new Complex[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+            squares[i] = values[i].mult(values[i]);
+
+        try {
+            evaluator.rotate(squared, 1);
+            throw new AssertionError("rotated a ciphertext that isn't relinearized");
+        } catch (IllegalStateException expected) {
+        }
+
+        evaluator.relinearize_inplace(squared);
+        evaluator.rescale_inplace(squared);
+
+        // at the top level, and at the one below
+        for (Ciphertext in : new Ciphertext[] { c, squared }) {
+            Complex[] expected = in == c ? values : squares;
+
+            for (int steps : STEPS) {
+                Complex[] rotated = new Complex[SLOTS];
+                for (int i = 0; i < SLOTS; i++)
+                    rotated[i] = expected[Math.floorMod(i + steps, SLOTS)];
+                checkDecrypts(encoder, decryptor, evaluator.rotate(in, steps), rotated,
+                        "rotation by " + steps + " at level " + in.getLevel());
+            }
+
+            Complex[] conjugated = new Complex[SLOTS];
+            for (int i = 0; i < SLOTS; i++)
+                conjugated[i] = expected[i].conj();
+            checkDecrypts(encoder, decryptor, evaluator.conjugate(in), conjugated,
+                    "conjugation at level " + in.getLevel());
+        }
+
+        // rotations compose
+        Ciphertext twice = evaluator.rotate(c, 2);
+        evaluator.rotate_inplace(twice, -1);
+        Complex[] rotated = new Complex[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+            rotated[i] = values[(i + 1) % SLOTS];
+        checkDecrypts(encoder, decryptor, twice, rotated, "rotation by 2 and -1");
+
+        // a full turn needs no key
+        checkDecrypts(encoder, decryptor, evaluator.rotate(c, SLOTS), values, "rotation by " + SLOTS);
+
+        try {
+            evaluator.rotate(c, 3);
+            throw new AssertionError("rotated without a Galois key");
+        } catch (IllegalStateException expected) {
+        }
+
+        rotatesMany(encoder, decryptor, evaluator, c, values);
+
+        System.out.println("EvaluatorRotationTest passed");
+    }
+
+    // rotateMany gives exactly the ciphertexts of the separate rotations
+    private static void rotatesMany(Encoder encoder, Decryptor decryptor, Evaluator evaluator, Ciphertext c,
+            Complex[] values) {
+        int[] steps = { 1, 0, -1, 5, 1, SLOTS / 2 };
+        Ciphertext[] res = evaluator.rotateMany(c, steps);
+        check(res.length == steps.length, res.length + " rotations, expected " + steps.length);
+
+        for (int k = 0; k < steps.length; k++) {
+            Ciphertext single = evaluator.rotate(c, steps[k]);
+            check(Arrays.equals(single.getB().toArray(), res[k].getB().toArray())
+                    && Arrays.equals(single.getA().toArray(), res[k].getA().toArray()),
+                    "rotateMany by " + steps[k] + " differs from rotate");
+
+            Complex[] rotated = new Complex[SLOTS];
+            for (int i = 0; i < SLOTS; i++)
+                rotated[i] = values[Math.floorMod(i + steps[k], SLOTS)];
+            checkDecrypts(encoder, decryptor, res[k], rotated, "rotateMany by " + steps[k]);
+        }
+
+        try {
+            evaluator.rotateMany(c, new int[] { 1, 3 });
+            throw new AssertionError("rotated without a Galois key");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private static void checkDecrypts(Encoder encoder, Decryptor decryptor, Ciphertext c, Complex[] expected,
+            String what) {
+        Plaintext p = new Plaintext(c.getB().getContext());
+        decryptor.decrypt(c, p);
+        Complex[] res = encoder.decode(p);
+
+        for (int i = 0; i < SLOTS; i++)
+            check(res[i].sub(expected[i]).norm() < 1e-3,
+                    what + ": slot " + i + " is " + res[i] + ", expected " + expected[i]);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,68 @@
+package ckks;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+// Checks the CRT reconstructions of Maths, rnsInverse and experimental_rnsInverse,
+// against BigInteger residues of known coefficients
+public class MathsRnsInverseTest {
+    private static final int SLOTS = 4;
+
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) {
+        Context context = new Context(SLOTS, 3, 10, 40);
+
+        for (int level = 0; level < context.primes.length; level++)
+            for (int round = 0; round < ROUNDS; round++)
+                reconstructs(context, level, round);
+
+        System.out.println("MathsRnsInverseTest passed");
+    }
+
+    private static void reconstructs(Context context, int level, int round) {
+        int N = SLOTS * 2;
+
+        BigInteger modulus = BigInteger.ONE;
+        for (int primeIdx = 0; primeIdx <= level; primeIdx++)
+            modulus = modulus.multiply(BigInteger.valueOf(context.primes[primeIdx]));
+        BigInteger half = modulus.subtract(BigInteger.ONE).shiftRight(1);
+
+        // centered coefficients, with the extremes and some small ones first
+        Random rnd = new Random(level * ROUNDS + round);
+        BigInteger[] values = new BigInteger[N];
+        values[0] = BigInteger.ZERO;
+        values[1] = BigInteger.ONE.negate();
+        values[2] = half;
+        values[3] = half.negate();
+        values[4] = BigInteger.valueOf(123456789 + round);
+        values[5] = BigInteger.valueOf(-987654321 - round);
+        for (int i = 6; i < N; i++)
+            values[i] = new BigInteger(modulus.bitLength() + 8, rnd).mod(modulus).subtract(half);
+
+        long[] coeffs = new long[(level + 1) * N];
+        for (int primeIdx = 0; primeIdx <= level; primeIdx++) {
+            BigInteger prime = BigInteger.valueOf(context.primes[primeIdx]);
+            for (int i = 0; i < N; i++)
+                coeffs[primeIdx * N + i] = values[i].mod(prime).longValue();
+        }
+
+        BigInteger[] exact = Maths.experimental_rnsInverse(context, coeffs, level);
+        double[] centered = Maths.rnsInverse(context, coeffs, level);
+
+        for (int i = 0; i < N; i++) {
+            check(exact[i].equals(values[i].mod(modulus)),
+                    "level " + level + ": exact coefficient " + i + " is " + exact[i] + ", expected "
+                            + values[i].mod(modulus));
+
+            double expected = values[i].doubleValue();
+            check(Math.abs(centered[i] - expected) <= Math.ulp(expected) * (level + 2),
+                    "level " + level + ": coefficient " + i + " is " + centered[i] + ", expected " + expected);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
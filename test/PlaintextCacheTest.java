@@ -0,0 +1,78 @@
+package ckks;
+
+// Checks the hits, misses and evictions of PlaintextCache, whose budget is in
+// bytes, so that entries at lower levels take less of it
+public class PlaintextCacheTest {
+    private static final int SLOTS = 256;
+
+    public static void main(String[] args) {
+        Context context = new Context(SLOTS, 2, 10, 30);
+        Encoder encoder = new Encoder(context);
+
+        // the limbs of a real plaintext at the top level, and its key
+        long topSize = ((context.topLevel + 1) * 2L * SLOTS + SLOTS) * Long.BYTES;
+        long bottomSize = (2L * SLOTS + SLOTS) * Long.BYTES;
+        PlaintextCache cache = new PlaintextCache(context, encoder, 3 * topSize);
+
+        double[] w = values(0);
+        Plaintext p = cache.get(w);
+        check(cache.get(w.clone()) == p, "a hit returned another plaintext");
+        check(p.isReadOnly() && !new Plaintext(p).isReadOnly(), "cached plaintexts aren't read-only, or copies are");
+        checkCounts(cache, 1, 1, 0, 1, topSize);
+
+        double[] res = encoder.decodeReal(p);
+        for (int i = 0; i < SLOTS; i++)
+            check(Math.abs(res[i] - w[i]) < 1e-6, "cached slot " + i + " is " + res[i] + ", expected " + w[i]);
+
+        // the least recently used entry goes first
+        cache.get(values(1));
+        cache.get(values(2));
+        cache.get(w);
+        cache.get(values(3));
+        checkCounts(cache, 2, 4, 1, 3, 3 * topSize);
+        cache.get(values(1));
+        checkCounts(cache, 2, 5, 2, 3, 3 * topSize);
+        cache.get(w);
+        checkCounts(cache, 3, 5, 2, 3, 3 * topSize);
+
+        // two bottom level entries replace a single top level one
+        cache.get(values(4), 0, context.defaultScale);
+        cache.get(values(5), 0, context.defaultScale);
+        checkCounts(cache, 3, 7, 3, 4, 2 * topSize + 2 * bottomSize);
+
+        // the level and scale are part of the key
+        cache.get(values(4), 0, context.defaultScale * 2);
+        check(cache.getMisses() == 8, "hit at another scale");
+
+        // a plaintext beyond the budget isn't cached
+        PlaintextCache tiny = new PlaintextCache(context, encoder, bottomSize);
+        Plaintext uncached = tiny.get(w);
+        check(tiny.size() == 0 && tiny.getBytes() == 0 && tiny.get(w) != uncached, "cached beyond the budget");
+
+        cache.clear();
+        check(cache.size() == 0 && cache.getBytes() == 0, "entries after clear");
+
+        System.out.println("PlaintextCacheTest passed");
+    }
+
+    private static double[] values(int seed) {
+        double[] res = new double[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+            res[i] = Math.sin(seed + i * 0.01);
+        return res;
+    }
+
+    private static void checkCounts(PlaintextCache cache, long hits, long misses, long evictions, int size,
+            long bytes) {
+        check(cache.getHits() == hits, cache.getHits() + " hits, expected " + hits);
+        check(cache.getMisses() == misses, cache.getMisses() + " misses, expected " + misses);
+        check(cache.getEvictions() == evictions, cache.getEvictions() + " evictions, expected " + evictions);
+        check(cache.size() == size, cache.size() + " entries, expected " + size);
+        check(cache.getBytes() == bytes, cache.getBytes() + " bytes, expected " + bytes);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}